@@ -0,0 +1,45 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// cat of one file to the console (discarded) and piped into wc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatBenchmark {
+    // 4 KB, 16 MB and 256 MB
+    @Param({"4096", "16777216", "268435456"})
+    public long size;
+
+    private Path directory;
+    private Terminal terminal;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("cat");
+        Fixtures.writeText(directory.resolve("input.txt"), size);
+        terminal = Fixtures.terminal(directory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int cat() {
+        return terminal.execute("cat input.txt");
+    }
+
+    @Benchmark
+    public int catPipedToWc() {
+        return terminal.execute("cat input.txt | wc -l");
+    }
+}
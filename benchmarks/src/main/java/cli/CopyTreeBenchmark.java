@@ -0,0 +1,46 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// cp -r of wide, deep and bushy trees. Every copy after the first
+// overwrites the last one, so no cleanup is needed between invocations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyTreeBenchmark {
+    @Param({"wide", "deep", "bushy"})
+    public String shape;
+
+    private Path directory;
+    private Terminal terminal;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("cp");
+        Fixtures.createTree(directory.resolve("source"), shape);
+        terminal = Fixtures.terminal(directory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int copyTree() {
+        return terminal.execute("cp -r source target");
+    }
+
+    // Nothing changed since the last copy, so only attributes are compared
+    @Benchmark
+    public int syncUnchangedTree() {
+        return terminal.execute("cp -r -u source target");
+    }
+}
@@ -0,0 +1,119 @@
+package cli;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Generated input for the benchmarks. Everything comes from fixed seeds, so
+// each run (and each release) measures the same bytes and the same trees
+final class Fixtures {
+    private static final String[] WORDS = {
+            "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+            "india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa"};
+
+    private Fixtures() {
+    }
+
+    // A Terminal working in directory whose console output is thrown away
+    static Terminal terminal(Path directory) {
+        return new Terminal(new PrintStream(OutputStream.nullOutputStream()), directory.toFile());
+    }
+
+    static Path createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("cli-bench-" + prefix);
+    }
+
+    // Lines of words, compresses about as well as source code or logs
+    static void writeText(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        StringBuilder line = new StringBuilder(128);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            long written = 0;
+            while (written < size) {
+                line.setLength(0);
+                int words = 4 + random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    line.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                line.append('\n');
+                byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+                int length = (int) Math.min(bytes.length, size - written);
+                out.write(bytes, 0, length);
+                written += length;
+            }
+        }
+    }
+
+    // Random bytes, which deflate cannot shrink
+    static void writeRandom(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 16];
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; ) {
+                random.nextBytes(block);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                written += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+    }
+
+    // count empty files named f0000000 and up, for directory listings
+    static void createEntries(Path directory, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.createFile(directory.resolve(String.format("f%07d", i)));
+        }
+    }
+
+    // Trees in three shapes:
+    //   wide   one directory holding 20000 files of 1 KB
+    //   deep   a chain of 64 nested directories with 8 files of 4 KB each
+    //   bushy  6 subdirectories per directory, 3 levels, 16 files of 16 KB each
+    static void createTree(Path root, String shape) throws IOException {
+        switch (shape) {
+            case "wide":
+                createTree(root, 0, 0, 20000, 1024);
+                break;
+            case "deep":
+                createTree(root, 1, 64, 8, 4096);
+                break;
+            case "bushy":
+                createTree(root, 6, 3, 16, 16 * 1024);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown tree shape " + shape);
+        }
+    }
+
+    private static void createTree(Path directory, int width, int depth, int files, int fileSize) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < files; i++) {
+            writeText(directory.resolve("file" + i + ".txt"), fileSize);
+        }
+        if (depth > 0) {
+            for (int i = 0; i < width; i++) {
+                createTree(directory.resolve("dir" + i), width, depth - 1, files, fileSize);
+            }
+        }
+    }
+
+    // Removes a fixture, children before their directory
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package cli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Wildcard expansion while parsing a line, in directories of ten thousand and
+// a hundred thousand entries, and across a tree with **
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobBenchmark {
+    @Param({"10000", "100000"})
+    public int entries;
+
+    @Param({"rm f00001*", "rm *7", "rm f[0-4]*[13] *9 f?????0*", "rm tree/**/*.txt"})
+    public String line;
+
+    private Path directory;
+    private Parser parser;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("glob");
+        Fixtures.createEntries(directory, entries);
+        Fixtures.createTree(directory.resolve("tree"), "bushy");
+        parser = new Parser(new PrintStream(OutputStream.nullOutputStream()), () -> directory);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int expand() {
+        parser.parse(line);
+        return parser.getArgs().length;
+    }
+}
@@ -0,0 +1,44 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// ls of directories from a hundred to a hundred thousand entries, in each listing mode
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LsBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int entries;
+
+    @Param({"", "-U", "-l", "-S"})
+    public String flags;
+
+    private Path directory;
+    private Terminal terminal;
+    private String line;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("ls");
+        Fixtures.createEntries(directory, entries);
+        terminal = Fixtures.terminal(directory);
+        line = "ls " + flags;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int ls() {
+        return terminal.execute(line);
+    }
+}
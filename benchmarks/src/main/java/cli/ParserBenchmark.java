@@ -0,0 +1,55 @@
+package cli;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Parser.parse on the kinds of lines people type, plus one very long line
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"simple", "quoted", "pipeline", "windows", "long"})
+    public String line;
+
+    private Parser parser;
+    private String input;
+
+    @Setup
+    public void setup() {
+        parser = new Parser(new PrintStream(OutputStream.nullOutputStream()));
+        switch (line) {
+            case "simple":
+                input = "ls -l src";
+                break;
+            case "quoted":
+                input = "cp \"my documents/report 2024.txt\" 'backup dir/report.txt'";
+                break;
+            case "pipeline":
+                input = "cat access.log | wc -l >> counts.txt";
+                break;
+            case "windows":
+                input = "cd C:\\Program Files\\Java";
+                break;
+            case "long":
+                StringBuilder words = new StringBuilder("zip -r archive.zip");
+                for (int i = 0; i < 200; i++) {
+                    words.append(" dir").append(i).append("/file").append(i).append(".csv");
+                }
+                input = words.toString();
+                break;
+            default:
+                throw new IllegalArgumentException(line);
+        }
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return parser.parse(input);
+    }
+}
@@ -0,0 +1,61 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Output going through redirectOutput into a file: > with small, listing
+// and large output, and >> appending a line at a time like a log
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedirectBenchmark {
+    private Path directory;
+    private Terminal terminal;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("redirect");
+        Fixtures.writeText(directory.resolve("large.txt"), 64L * 1024 * 1024);
+        Files.createDirectory(directory.resolve("entries"));
+        Fixtures.createEntries(directory.resolve("entries"), 10000);
+        terminal = Fixtures.terminal(directory);
+    }
+
+    // The append target would otherwise grow through the whole run
+    @Setup(Level.Iteration)
+    public void truncateLog() throws IOException {
+        Files.deleteIfExists(directory.resolve("log.txt"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int overwriteSmall() {
+        return terminal.execute("pwd > out.txt");
+    }
+
+    @Benchmark
+    public int overwriteListing() {
+        return terminal.execute("ls entries > out.txt");
+    }
+
+    @Benchmark
+    public int overwriteLarge() {
+        return terminal.execute("cat large.txt > out.txt");
+    }
+
+    @Benchmark
+    public int appendLine() {
+        return terminal.execute("pwd >> log.txt");
+    }
+}
@@ -0,0 +1,45 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// wc over memory mapped chunks, with all counts and with lines only
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WcBenchmark {
+    // 4 KB, 16 MB and 256 MB
+    @Param({"4096", "16777216", "268435456"})
+    public long size;
+
+    @Param({"", "-l"})
+    public String flags;
+
+    private Path directory;
+    private Terminal terminal;
+    private String line;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("wc");
+        Fixtures.writeText(directory.resolve("input.txt"), size);
+        terminal = Fixtures.terminal(directory);
+        line = "wc " + flags + " input.txt";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int wc() {
+        return terminal.execute(line);
+    }
+}
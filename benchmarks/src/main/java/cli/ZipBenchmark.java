@@ -0,0 +1,68 @@
+package cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// zip and unzip of a tree of text files, one large text file and one large
+// random file (which ends up stored). Archives and extracted files are
+// overwritten by each invocation
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipBenchmark {
+    @Param({"tree", "text", "random"})
+    public String input;
+
+    private Path directory;
+    private Terminal terminal;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Fixtures.createDirectory("zip");
+        Path source = directory.resolve("source");
+        switch (input) {
+            case "tree":
+                Fixtures.createTree(source, "bushy");
+                break;
+            case "text":
+                source.toFile().mkdir();
+                Fixtures.writeText(source.resolve("large.txt"), 128L * 1024 * 1024);
+                break;
+            case "random":
+                source.toFile().mkdir();
+                Fixtures.writeRandom(source.resolve("large.bin"), 128L * 1024 * 1024);
+                break;
+            default:
+                throw new IllegalArgumentException(input);
+        }
+        terminal = Fixtures.terminal(directory);
+        terminal.execute("zip -r prepared.zip source");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int zip() {
+        return terminal.execute("zip -r archive.zip source");
+    }
+
+    // Nothing changed, every entry is copied from the old archive as it is
+    @Benchmark
+    public int zipUpdateUnchanged() {
+        return terminal.execute("zip -u -r prepared.zip source");
+    }
+
+    @Benchmark
+    public int unzip() {
+        return terminal.execute("unzip -d extracted prepared.zip");
+    }
+}
@@ -0,0 +1,6553 @@
+package cli;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.util.function.BiPredicate;
+import java.util.function.IntConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
+import java.util.zip.*;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Class responsible for splitting a command line into words and operators in
+// a single pass, without regular expressions. Handles 'single' and "double"
+// quotes, backslash escapes and the > >> | & operators. An unquoted Windows path
+// like C:\Program Files keeps its backslashes and spaces up to the next
+// operator or drive path. Words with unquoted * ? or [ also get a glob
+// pattern, in which quoted characters are escaped. The token arrays are
+// reused from line to line
+class Lexer {
+    static final int WORD = 0;
+    static final int REDIRECT = 1;
+    static final int APPEND = 2;
+    static final int PIPE = 3;
+    static final int BACKGROUND = 4;
+
+    private int[] kinds = new int[16];
+    private String[] words = new String[16];
+    private String[] patterns = new String[16];
+    private int count = 0;
+    private final StringBuilder word = new StringBuilder(64);
+    // The current word as a glob pattern, used once glob is set
+    private final StringBuilder pattern = new StringBuilder(64);
+    private boolean glob;
+    private String error;
+
+    // Returns false when the line is malformed, error() tells why
+    boolean lex(String input) {
+        count = 0;
+        error = null;
+        int length = input.length();
+        int i = 0;
+        while (i < length) {
+            char c = input.charAt(i);
+            if (isSpace(c)) {
+                i++;
+            } else if (c == '|') {
+                add(PIPE, null, null);
+                i++;
+            } else if (c == '&') {
+                add(BACKGROUND, null, null);
+                i++;
+            } else if (c == '>') {
+                boolean append = i + 1 < length && input.charAt(i + 1) == '>';
+                add(append ? APPEND : REDIRECT, null, null);
+                i += append ? 2 : 1;
+            } else {
+                i = isDrivePath(input, i) ? readDrivePath(input, i) : readWord(input, i);
+                if (i < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int kind(int index) {
+        return kinds[index];
+    }
+
+    // Text of a WORD token, null for operators
+    String word(int index) {
+        return words[index];
+    }
+
+    // Glob pattern of a WORD token, null when it has no unquoted wildcard
+    String pattern(int index) {
+        return patterns[index];
+    }
+
+    String error() {
+        return error;
+    }
+
+    private int readWord(String input, int i) {
+        word.setLength(0);
+        pattern.setLength(0);
+        glob = false;
+        int length = input.length();
+        while (i < length) {
+            char c = input.charAt(i);
+            if (isSpace(c) || c == '|' || c == '>' || c == '&') {
+                break;
+            }
+            if (c == '\\') {
+                // A backslash takes the next character as it is, a trailing one stays
+                appendQuoted(i + 1 < length ? input.charAt(i + 1) : c);
+                i = Math.min(i + 2, length);
+            } else if (c == '\'') {
+                int end = input.indexOf('\'', i + 1);
+                if (end < 0) {
+                    return unterminated('\'');
+                }
+                for (int j = i + 1; j < end; j++) {
+                    appendQuoted(input.charAt(j));
+                }
+                i = end + 1;
+            } else if (c == '"') {
+                i = readDoubleQuoted(input, i + 1);
+                if (i < 0) {
+                    return i;
+                }
+            } else {
+                word.append(c);
+                if (c == '*' || c == '?' || c == '[') {
+                    glob = true;
+                    pattern.append(c);
+                } else if (c == '{' || c == '}') {
+                    // Braces are not expanded, they stay part of the name
+                    pattern.append('\\').append(c);
+                } else {
+                    pattern.append(c);
+                }
+                i++;
+            }
+        }
+        add(WORD, word.toString(), glob ? pattern.toString() : null);
+        return i;
+    }
+
+    // A character that came quoted or escaped, never a wildcard
+    private void appendQuoted(char c) {
+        word.append(c);
+        if (c == '*' || c == '?' || c == '[' || c == ']' || c == '{' || c == '}' || c == '\\') {
+            pattern.append('\\');
+        }
+        pattern.append(c);
+    }
+
+    // Inside double quotes a backslash only escapes " and \
+    private int readDoubleQuoted(String input, int i) {
+        int length = input.length();
+        while (i < length) {
+            char c = input.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < length && (input.charAt(i + 1) == '"' || input.charAt(i + 1) == '\\')) {
+                appendQuoted(input.charAt(i + 1));
+                i += 2;
+            } else {
+                appendQuoted(c);
+                i++;
+            }
+        }
+        return unterminated('"');
+    }
+
+    // Words after a drive path are joined to it with one space, like the
+    // path was never split on whitespace
+    private int readDrivePath(String input, int i) {
+        word.setLength(0);
+        int length = input.length();
+        while (i < length) {
+            char c = input.charAt(i);
+            if (c == '|' || c == '>' || c == '&') {
+                break;
+            }
+            if (isSpace(c)) {
+                int next = i + 1;
+                while (next < length && isSpace(input.charAt(next))) {
+                    next++;
+                }
+                i = next;
+                if (next == length || input.charAt(next) == '|' || input.charAt(next) == '>'
+                        || input.charAt(next) == '&' || isDrivePath(input, next)) {
+                    break;
+                }
+                word.append(' ');
+            } else {
+                word.append(c);
+                i++;
+            }
+        }
+        add(WORD, word.toString(), null);
+        return i;
+    }
+
+    // Letter, colon, backslash, like C:\Users
+    private static boolean isDrivePath(String input, int i) {
+        if (i + 2 >= input.length()) {
+            return false;
+        }
+        char drive = input.charAt(i);
+        return ((drive >= 'a' && drive <= 'z') || (drive >= 'A' && drive <= 'Z'))
+                && input.charAt(i + 1) == ':' && input.charAt(i + 2) == '\\';
+    }
+
+    // Same characters as \s in a regular expression
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private int unterminated(char quote) {
+        error = "Missing closing quote (" + quote + ")";
+        return -1;
+    }
+
+    private void add(int kind, String text, String glob) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            words = Arrays.copyOf(words, count * 2);
+            patterns = Arrays.copyOf(patterns, count * 2);
+        }
+        kinds[count] = kind;
+        words[count] = text;
+        patterns[count] = glob;
+        count++;
+    }
+}
+
+// Class responsible for parsing down raw input from the user
+class Parser {
+    String commandName;
+    String[] args;
+    // Commands of a pipeline like "cat a.txt | wc", in order
+    private List<Stage> stages = new ArrayList<>();
+    // Add fields for redirection operators
+    private boolean isRedirected = false;
+    private boolean isAppend = false;
+    private String redirectFile = null;
+    // Line started with time, its cost is printed after it ran
+    private boolean isTimed = false;
+    // Line ended with &, it runs as a background job
+    private boolean isBackground = false;
+    // Where syntax errors are reported
+    private final PrintStream console;
+    // Where wildcards are expanded
+    private final Supplier<Path> directory;
+    // Reused for every line this parser reads
+    private final Lexer lexer = new Lexer();
+
+    Parser() {
+        this(System.out);
+    }
+
+    Parser(PrintStream console) {
+        this(console, () -> Paths.get(System.getProperty("user.dir")));
+    }
+
+    Parser(PrintStream console, Supplier<Path> directory) {
+        this.console = console;
+        this.directory = directory;
+    }
+
+    public boolean parse(String input) {
+        this.isRedirected = false;
+        this.isAppend = false;
+        this.redirectFile = null;
+        this.isTimed = false;
+        this.isBackground = false;
+        // A fresh list, since callers may still hold the stages of the last line
+        this.stages = new ArrayList<>(2);
+
+        if (input == null || input.isBlank()) {
+            return false;
+        }
+        // Split input into words and operators
+        if (!lexer.lex(input)) {
+            return fail("Error: " + lexer.error());
+        }
+        int count = lexer.count();
+        if (count == 0) {
+            return false;
+        }
+
+        // A trailing & sends the line to the background, nowhere else has it a meaning
+        if (lexer.kind(count - 1) == Lexer.BACKGROUND) {
+            this.isBackground = true;
+            count--;
+            if (count == 0) {
+                return fail("Error: Missing command before &");
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (lexer.kind(i) == Lexer.BACKGROUND) {
+                return fail("Error: & must come at the end of the line");
+            }
+        }
+
+        // "time" in front of a command measures the rest of the line
+        int first = 0;
+        if (count > 1 && lexer.kind(0) == Lexer.WORD && lexer.kind(1) == Lexer.WORD && "time".equals(lexer.word(0))) {
+            this.isTimed = true;
+            first = 1;
+        }
+
+        int redirectIndex = findRedirectionIndex();
+        int commandEnd = count;
+
+        if (redirectIndex != -1) {
+            // Arguments stop at the redirection
+            commandEnd = redirectIndex;
+
+            // Extract redirection info
+            this.isRedirected = true;
+            this.isAppend = lexer.kind(redirectIndex) == Lexer.APPEND;
+
+            if (redirectIndex + 1 < count && lexer.kind(redirectIndex + 1) == Lexer.WORD) {
+                this.redirectFile = lexer.word(redirectIndex + 1);
+            } else {
+                return fail("Error: Missing redirection file name");
+            }
+            // Redirection applies to the last command of a pipeline only
+            for (int i = redirectIndex + 1; i < count; i++) {
+                if (lexer.kind(i) == Lexer.PIPE) {
+                    return fail("Error: Redirection must come after the last command");
+                }
+            }
+        }
+
+        // Split the command part on | into pipeline stages
+        int stageStart = first;
+        for (int i = first; i <= commandEnd; i++) {
+            if (i == commandEnd || lexer.kind(i) == Lexer.PIPE) {
+                if (i == stageStart) {
+                    return fail("Error: Missing command in pipeline");
+                }
+                String[] stageArgs = new String[i - stageStart - 1];
+                String[] patterns = null;
+                for (int j = 0; j < stageArgs.length; j++) {
+                    stageArgs[j] = lexer.word(stageStart + 1 + j);
+                    String pattern = lexer.pattern(stageStart + 1 + j);
+                    if (pattern != null) {
+                        if (patterns == null) {
+                            patterns = new String[stageArgs.length];
+                        }
+                        patterns[j] = pattern;
+                    }
+                }
+                // Wildcards in arguments become the names they match
+                if (patterns != null) {
+                    stageArgs = GlobExpander.expand(directory.get(), stageArgs, patterns);
+                }
+                stages.add(new Stage(lexer.word(stageStart), stageArgs));
+                stageStart = i + 1;
+            }
+        }
+
+        // The first stage is also exposed through getCommandName/getArgs
+        this.commandName = stages.get(0).commandName;
+        this.args = stages.get(0).args;
+        return true;
+    }
+
+    private boolean fail(String message) {
+        console.println(message);
+        this.commandName = null;
+        return false;
+    }
+
+    // Helper method to find redirection operator index
+    private int findRedirectionIndex() {
+        for (int i = 0; i < lexer.count(); i++) {
+            if (lexer.kind(i) == Lexer.REDIRECT || lexer.kind(i) == Lexer.APPEND) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    // Getters
+    public boolean isRedirected() {return isRedirected;}
+    public boolean isAppend() {return isAppend;}
+    public boolean isTimed() {return isTimed;}
+    public boolean isBackground() {return isBackground;}
+    public String getRedirectFile() {return redirectFile;}
+    public String getCommandName() {return commandName;}
+    public String[] getArgs() {return args;}
+    public List<Stage> getStages() {return stages;}
+
+    // One command of a pipeline with its arguments
+    static class Stage {
+        final String commandName;
+        final String[] args;
+
+        Stage(String commandName, String[] args) {
+            this.commandName = commandName;
+            this.args = args;
+        }
+    }
+}
+
+// Class responsible for expanding wildcards before a command runs, the way a
+// shell does: * ? and [...] within a name, ** for any number of directories.
+// Compiled patterns are cached, all patterns of a line that look in the same
+// directory are matched in one scan of it, and ** is walked in parallel.
+// Names starting with a dot only match a pattern that starts with one too,
+// matches come back sorted and a pattern without matches stays as it is
+class GlobExpander {
+    // Cached patterns are dropped all at once when there are this many
+    static final int CACHE_LIMIT = 256;
+    // Longer lists of matches are sorted in parallel
+    static final int PARALLEL_SORT = 8192;
+    static final int WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private static final Map<String, NamePattern> PATTERNS = new ConcurrentHashMap<>();
+
+    // A compiled name pattern with the literal text every match starts and
+    // ends with, so most names are turned down without the regular expression
+    static final class NamePattern {
+        final PathMatcher matcher;
+        final String prefix;
+        final String suffix;
+        // A single * and nothing else wild: prefix and suffix decide alone
+        final boolean simple;
+
+        NamePattern(String pattern) {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            StringBuilder literal = new StringBuilder();
+            String first = null;
+            int wildcards = 0;
+            boolean star = false;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\\' && i + 1 < pattern.length()) {
+                    literal.append(pattern.charAt(++i));
+                    continue;
+                }
+                if (c != '*' && c != '?' && c != '[') {
+                    literal.append(c);
+                    continue;
+                }
+                if (c == '[') {
+                    // Skip to the closing bracket, which may come first in the set
+                    int end = i + 1;
+                    if (end < pattern.length() && pattern.charAt(end) == '!') {
+                        end++;
+                    }
+                    end = pattern.indexOf(']', end + 1);
+                    i = end < 0 ? pattern.length() : end;
+                }
+                if (first == null) {
+                    first = literal.toString();
+                }
+                literal.setLength(0);
+                wildcards++;
+                star = c == '*';
+            }
+            prefix = first == null ? literal.toString() : first;
+            suffix = first == null ? "" : literal.toString();
+            simple = wildcards == 1 && star;
+        }
+
+        boolean matches(Path name, String text) {
+            if (text.length() < prefix.length() + suffix.length() || !text.startsWith(prefix) || !text.endsWith(suffix)) {
+                return false;
+            }
+            return simple || matcher.matches(name);
+        }
+    }
+
+    // Replaces every word that has a pattern by the names it matches
+    static String[] expand(Path directory, String[] words, String[] patterns) {
+        List<List<String>> matches = new ArrayList<>(Collections.nCopies(words.length, null));
+        // Patterns with wildcards only in their last name, by the directory they look in
+        Map<Path, List<Integer>> scans = new LinkedHashMap<>();
+        for (int i = 0; i < words.length; i++) {
+            String pattern = patterns[i];
+            if (pattern == null) {
+                continue;
+            }
+            int slash = pattern.lastIndexOf('/');
+            String parent = pattern.substring(0, slash + 1);
+            String name = pattern.substring(slash + 1);
+            try {
+                if (!name.isEmpty() && !name.contains("**") && !hasWildcard(parent)) {
+                    pattern(name);
+                    scans.computeIfAbsent(directory.resolve(unescape(parent)), key -> new ArrayList<>()).add(i);
+                } else {
+                    matches.set(i, expandPath(directory, pattern));
+                }
+            } catch (PatternSyntaxException e) {
+                // Not a valid pattern, the word is passed on as it is
+            }
+        }
+        for (Map.Entry<Path, List<Integer>> scan : scans.entrySet()) {
+            scan(scan.getKey(), scan.getValue(), patterns, matches);
+        }
+
+        List<String> expanded = new ArrayList<>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            List<String> found = matches.get(i);
+            if (found == null || found.isEmpty()) {
+                expanded.add(words[i]);
+            } else if (found.size() > PARALLEL_SORT) {
+                String[] sorted = found.toArray(new String[0]);
+                Arrays.parallelSort(sorted);
+                expanded.addAll(Arrays.asList(sorted));
+            } else {
+                Collections.sort(found);
+                expanded.addAll(found);
+            }
+        }
+        return expanded.toArray(new String[0]);
+    }
+
+    // One pass over a directory for every pattern that looks in it
+    private static void scan(Path directory, List<Integer> indexes, String[] patterns, List<List<String>> matches) {
+        int count = indexes.size();
+        NamePattern[] names = new NamePattern[count];
+        String[] prefixes = new String[count];
+        boolean[] dots = new boolean[count];
+        for (int k = 0; k < count; k++) {
+            String pattern = patterns[indexes.get(k)];
+            int slash = pattern.lastIndexOf('/');
+            names[k] = pattern(pattern.substring(slash + 1));
+            prefixes[k] = unescape(pattern.substring(0, slash + 1));
+            dots[k] = pattern.startsWith(".", slash + 1);
+            matches.set(indexes.get(k), new ArrayList<>());
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Path name = entry.getFileName();
+                String text = name.toString();
+                boolean hidden = text.startsWith(".");
+                for (int k = 0; k < count; k++) {
+                    if ((!hidden || dots[k]) && names[k].matches(name, text)) {
+                        matches.get(indexes.get(k)).add(prefixes[k] + text);
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // Nothing matches in a directory that cannot be read
+        }
+    }
+
+    // Patterns with wildcards before the last name, matched one name at a time
+    private static List<String> expandPath(Path directory, String pattern) {
+        String[] parts = pattern.split("/+");
+        // A trailing slash only keeps directories, and stays on the names
+        boolean directories = pattern.endsWith("/");
+        List<String> names = new ArrayList<>();
+        names.add(pattern.startsWith("/") ? "/" : "");
+        for (int p = 0; p < parts.length; p++) {
+            String part = parts[p];
+            if (part.isEmpty()) {
+                continue;
+            }
+            boolean last = p == parts.length - 1 && !directories;
+            List<String> next = new ArrayList<>();
+            for (String name : names) {
+                Path path = name.isEmpty() ? directory : directory.resolve(name);
+                if (part.equals("**")) {
+                    next.addAll(below(path, name, last));
+                } else if (hasWildcard(part)) {
+                    NamePattern namePattern = pattern(part);
+                    boolean dot = part.startsWith(".");
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                        for (Path entry : entries) {
+                            Path entryName = entry.getFileName();
+                            String text = entryName.toString();
+                            if ((dot || !text.startsWith(".")) && namePattern.matches(entryName, text)
+                                    && (last || Files.isDirectory(entry))) {
+                                next.add(join(name, text));
+                            }
+                        }
+                    } catch (IOException | DirectoryIteratorException e) {
+                        // Nothing matches in a directory that cannot be read
+                    }
+                } else {
+                    String child = join(name, unescape(part));
+                    Path childPath = directory.resolve(child);
+                    if (last ? Files.exists(childPath, LinkOption.NOFOLLOW_LINKS) : Files.isDirectory(childPath)) {
+                        next.add(child);
+                    }
+                }
+            }
+            names = next;
+        }
+        if (directories) {
+            names.replaceAll(name -> name.endsWith("/") ? name : name + "/");
+        }
+        return names;
+    }
+
+    // For ** in the middle: name itself and every directory below it. As the
+    // last part: every entry below it. Hidden entries are left out
+    private static List<String> below(Path path, String name, boolean last) {
+        List<String> found = new ArrayList<>();
+        if (!last) {
+            found.add(name);
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return found;
+        }
+        String root = name.isEmpty() ? "." : name;
+        TreeWalker walker = new TreeWalker(WORKERS, Integer.MAX_VALUE, (entry, attributes, depth) -> {
+            if (depth == 0 || !last && !attributes.isDirectory()) {
+                return null;
+            }
+            String relative = entry.substring(root.length());
+            return (relative.startsWith("/") ? relative : "/" + relative).contains("/.") ? null : entry;
+        });
+        for (String entry : walker.collect(path, root)) {
+            // Names below the current directory are shown without ./
+            found.add(name.isEmpty() ? entry.substring(2) : entry);
+        }
+        return found;
+    }
+
+    static NamePattern pattern(String pattern) {
+        NamePattern compiled = PATTERNS.get(pattern);
+        if (compiled == null) {
+            if (PATTERNS.size() >= CACHE_LIMIT) {
+                PATTERNS.clear();
+            }
+            compiled = new NamePattern(pattern);
+            PATTERNS.put(pattern, compiled);
+        }
+        return compiled;
+    }
+
+    private static String join(String name, String child) {
+        return name.isEmpty() ? child : name.endsWith("/") ? name + child : name + "/" + child;
+    }
+
+    private static boolean hasWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The literal name a pattern without wildcards stands for
+    private static String unescape(String pattern) {
+        if (pattern.indexOf('\\') < 0) {
+            return pattern;
+        }
+        StringBuilder name = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                c = pattern.charAt(++i);
+            }
+            name.append(c);
+        }
+        return name.toString();
+    }
+}
+
+// Class responsible for receiving command output. Commands write into it
+// piece by piece, so only a small fixed buffer is held in memory at a time
+class OutputSink implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int TRANSFER_BUFFER_SIZE = 1024 * 1024;
+    static final int BATCH_BUFFER_SIZE = 1024 * 1024;
+
+    // Direct buffers are costly to allocate, so each thread keeps one around
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE));
+    private static FileChannel stdoutChannel;
+    private static BatchConsole batchConsole;
+
+    private final OutputStream out;
+    // Raw channel behind the sink (console or file), null for in-memory sinks
+    private final WritableByteChannel channel;
+    // Backing store for in-memory sinks, null otherwise
+    private final ByteArrayOutputStream memory;
+    private final boolean closeTarget;
+    // Bytes written so far, for command metrics
+    private long written;
+
+    private OutputSink(OutputStream target, WritableByteChannel channel, ByteArrayOutputStream memory, boolean closeTarget) {
+        this(target, channel, memory, closeTarget, true);
+    }
+
+    private OutputSink(OutputStream target, WritableByteChannel channel, ByteArrayOutputStream memory,
+                       boolean closeTarget, boolean buffered) {
+        this.out = buffered ? new BufferedOutputStream(target, BUFFER_SIZE) : target;
+        this.channel = channel;
+        this.memory = memory;
+        this.closeTarget = closeTarget;
+    }
+
+    // Sink that writes to the console. In batch mode it writes straight into the
+    // shared console buffer and has no raw channel, so output stays in order
+    static OutputSink toStdout() {
+        if (batchConsole != null) {
+            // Already buffered, a second buffer per command would only add copying
+            return new OutputSink(System.out, null, null, false, false);
+        }
+        return new OutputSink(System.out, stdoutChannel(), null, false);
+    }
+
+    // Switches System.out and all console sinks to one large buffer on fd 1.
+    // flush() on it is ignored, output leaves when the buffer fills or on drainConsole()
+    static synchronized void useBatchConsole() {
+        if (batchConsole == null) {
+            batchConsole = new BatchConsole(new FileOutputStream(FileDescriptor.out), BATCH_BUFFER_SIZE);
+            System.setOut(new PrintStream(batchConsole, false, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Writes out whatever the batch console still holds
+    static synchronized void drainConsole() {
+        if (batchConsole != null) {
+            System.out.flush();
+            batchConsole.drain();
+        }
+    }
+
+    private static final class BatchConsole extends BufferedOutputStream {
+        BatchConsole(OutputStream out, int size) {
+            super(out, size);
+        }
+
+        @Override
+        public void flush() {
+            // Deferred until drain(), a full buffer is still written by write()
+        }
+
+        void drain() {
+            try {
+                super.flush();
+            } catch (IOException e) {
+                // Nowhere left to report it, the reader of fd 1 is gone
+            }
+        }
+    }
+
+    // Channel on file descriptor 1, never closed
+    private static synchronized FileChannel stdoutChannel() {
+        if (stdoutChannel == null) {
+            stdoutChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return stdoutChannel;
+    }
+
+    // Sink that writes to a session console, which stays open after the command
+    static OutputSink toConsole(OutputStream console) {
+        return new OutputSink(console, null, null, false);
+    }
+
+    // Sink that writes to a file, used for > (overwrite) and >> (append)
+    static OutputSink toFile(Path file, boolean append) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputSink(Channels.newOutputStream(channel), channel, null, true);
+    }
+
+    // Sink that writes into a stream, like the pipe to the next pipeline stage
+    static OutputSink toStream(OutputStream target) {
+        return new OutputSink(target, null, null, true);
+    }
+
+    // Sink that keeps everything in memory, handy for tests
+    static OutputSink inMemory() {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        return new OutputSink(memory, null, memory, false);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        written += length;
+    }
+
+    public void print(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        written += bytes.length;
+    }
+
+    public void println(String text) throws IOException {
+        print(text);
+        out.write('\n');
+        written++;
+    }
+
+    long written() {
+        return written;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Copies everything left in a stream, such as piped input, into the sink
+    public void copyFrom(InputStream in) throws IOException {
+        byte[] block = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = in.read(block)) != -1) {
+            out.write(block, 0, length);
+            written += length;
+        }
+    }
+
+    // Copies the rest of a file into the sink without decoding it. Console
+    // and file targets get FileChannel.transferTo (sendfile on Linux);
+    // anything left over goes through a large direct buffer
+    public void transferFrom(FileChannel source) throws IOException {
+        // Earlier buffered output must land before the raw bytes
+        out.flush();
+        long start = source.position();
+        if (channel instanceof FileChannel) {
+            long position = source.position();
+            long size = source.size();
+            while (position < size) {
+                long sent = source.transferTo(position, size - position, channel);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+            source.position(position);
+        }
+        // Also covers files that report no size up front, like those in /proc
+        WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+        ByteBuffer buffer = TRANSFER_BUFFER.get();
+        buffer.clear();
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+        written += source.position() - start;
+    }
+
+    // Content written so far, only available for in-memory sinks
+    public String contents() throws IOException {
+        if (memory == null) {
+            throw new IllegalStateException("not an in-memory sink");
+        }
+        out.flush();
+        return memory.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+        if (closeTarget) {
+            out.close();
+        }
+    }
+}
+
+
+// Class responsible for connecting two pipeline stages. It holds a fixed
+// ring buffer and a writer blocks while it is full, so a fast producer
+// waits for its consumer instead of buffering everything
+class BytePipe {
+    static final int DEFAULT_SIZE = 64 * 1024;
+
+    // Thrown to a writer once the reading side has gone away
+    static class BrokenPipeException extends IOException {
+        BrokenPipeException() {
+            super("Broken pipe");
+        }
+    }
+
+    private final byte[] buffer;
+    private int readPosition = 0;
+    private int count = 0;
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    BytePipe(int size) {
+        this.buffer = new byte[size];
+    }
+
+    // Writing end, closing it signals end of input to the reader
+    OutputStream sink() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                lock.lock();
+                try {
+                    while (length > 0) {
+                        while (count == buffer.length && !readerClosed) {
+                            await(notFull);
+                        }
+                        if (readerClosed) {
+                            throw new BrokenPipeException();
+                        }
+                        int writePosition = (readPosition + count) % buffer.length;
+                        int chunk = Math.min(length, Math.min(buffer.length - count, buffer.length - writePosition));
+                        System.arraycopy(bytes, offset, buffer, writePosition, chunk);
+                        count += chunk;
+                        offset += chunk;
+                        length -= chunk;
+                        notEmpty.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                lock.lock();
+                try {
+                    writerClosed = true;
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    // Reading end, closing it makes further writes fail with a broken pipe
+    InputStream source() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                lock.lock();
+                try {
+                    while (count == 0 && !writerClosed) {
+                        await(notEmpty);
+                    }
+                    if (count == 0) {
+                        return -1;
+                    }
+                    int chunk = Math.min(length, Math.min(count, buffer.length - readPosition));
+                    System.arraycopy(buffer, readPosition, bytes, offset, chunk);
+                    readPosition = (readPosition + chunk) % buffer.length;
+                    count -= chunk;
+                    notFull.signal();
+                    return chunk;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                lock.lock();
+                try {
+                    readerClosed = true;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    // Waits on a condition, turning an interrupt into an I/O error
+    private static void await(Condition condition) throws IOException {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("pipe wait interrupted");
+        }
+    }
+}
+
+// Class responsible for counting lines, words and bytes for wc. Files are
+// memory mapped in chunks which are counted in parallel and then merged
+class WordCounter {
+    static final long CHUNK_SIZE = 16L * 1024 * 1024;
+    private static final int SCAN_SIZE = 64 * 1024;
+
+    // Bytes that separate words: space, \t, \n, \v, \f and \r
+    private static final boolean[] SPACE = new boolean[256];
+    static {
+        for (char c : new char[] {' ', '\t', '\n', 0x0B, '\f', '\r'}) {
+            SPACE[c] = true;
+        }
+    }
+
+    // Counts for a range of bytes. A word cut by a chunk edge is counted in
+    // both halves, so the edge flags are kept to remove it when merging
+    static final class Counts {
+        long lines;
+        long words;
+        long bytes;
+        boolean startsInWord;
+        boolean endsInWord;
+
+        // Adds a block of bytes that directly follows those counted so far
+        void add(byte[] block, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (bytes == 0) {
+                startsInWord = !SPACE[block[0] & 0xFF];
+            }
+            boolean inWord = endsInWord;
+            long newLines = 0;
+            long newWords = 0;
+            for (int i = 0; i < length; i++) {
+                int b = block[i] & 0xFF;
+                if (b == '\n') {
+                    newLines++;
+                }
+                if (SPACE[b]) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    newWords++;
+                }
+            }
+            lines += newLines;
+            words += newWords;
+            bytes += length;
+            endsInWord = inWord;
+        }
+
+        Counts merge(Counts next) {
+            Counts merged = new Counts();
+            merged.lines = lines + next.lines;
+            merged.bytes = bytes + next.bytes;
+            merged.words = words + next.words - (endsInWord && next.startsInWord ? 1 : 0);
+            merged.startsInWord = bytes > 0 ? startsInWord : next.startsInWord;
+            merged.endsInWord = next.bytes > 0 ? next.endsInWord : endsInWord;
+            return merged;
+        }
+    }
+
+    // Counts piped input, which can only be read front to back
+    static Counts count(InputStream in) throws IOException {
+        Counts counts = new Counts();
+        byte[] block = new byte[SCAN_SIZE];
+        int length;
+        while ((length = in.read(block)) != -1) {
+            counts.add(block, length);
+        }
+        return counts;
+    }
+
+    // Counts a whole file on the common fork-join pool. Files that fit in one
+    // read are counted right here, mapping and forking would cost more than the scan
+    static Counts count(FileChannel channel) throws IOException {
+        if (channel.size() <= SCAN_SIZE) {
+            return count(Channels.newInputStream(channel));
+        }
+        try {
+            return ForkJoinPool.commonPool().invoke(new ChunkTask(channel, 0, channel.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Splits a byte range in half until it is small enough to map and scan
+    private static final class ChunkTask extends RecursiveTask<Counts> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (end - start <= CHUNK_SIZE) {
+                try {
+                    return scan(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = start + (end - start) / 2;
+            ChunkTask left = new ChunkTask(channel, start, middle);
+            left.fork();
+            Counts right = new ChunkTask(channel, middle, end).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    // Counts one mapped chunk, copying it out in small blocks for a tight loop
+    private static Counts scan(ByteBuffer buffer) {
+        Counts counts = new Counts();
+        byte[] block = new byte[Math.min(SCAN_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(block.length, buffer.remaining());
+            buffer.get(block, 0, length);
+            counts.add(block, length);
+        }
+        return counts;
+    }
+}
+
+
+// Class responsible for cp -r and cp -u. Each directory is created before
+// any of its entries are copied, and subdirectories and files are spread
+// across a fork-join pool so many small files are copied at the same time
+class TreeCopier {
+    // Files at least this big are copied with FileChannel.transferTo
+    static final long TRANSFER_THRESHOLD = 1024 * 1024;
+    // Unit compared and rewritten when updating a changed file in place
+    static final int SYNC_BLOCK_SIZE = 64 * 1024;
+
+    final LongAdder files = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder unchanged = new LongAdder();
+    final LongAdder saved = new LongAdder();
+    final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private final int workers;
+    // Sync mode: skip unchanged files and only rewrite blocks that differ
+    private final boolean update;
+
+    TreeCopier(int workers, boolean update) {
+        this.workers = workers;
+        this.update = update;
+    }
+
+    // Copies a single file, following the same rules as files inside a tree
+    void copyFile(Path source, Path target) {
+        try {
+            copy(source, target, Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            errors.add("error copying '" + source + "': " + e.getMessage());
+        }
+    }
+
+    // Copies the directory source to target, which is created if needed
+    void copyTree(Path source, Path target) {
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            JobTable.invoke(pool, new DirectoryTask(source, target));
+        } finally {
+            pool.shutdown();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            errors.add("interrupted, copy is incomplete");
+        }
+    }
+
+    // One line report of files, bytes and throughput
+    String summary(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        long copied = bytes.sum();
+        String report = String.format("cp: copied %d files, %d bytes in %d ms (%.1f MB/s)",
+                files.sum(), copied, elapsedNanos / 1_000_000, copied / seconds / (1024 * 1024));
+        if (update) {
+            report += String.format(", %d unchanged, %d bytes saved", unchanged.sum(), saved.sum());
+        }
+        return errors.isEmpty() ? report : report + ", " + errors.size() + " errors";
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+
+        DirectoryTask(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectories(target);
+            } catch (IOException e) {
+                errors.add("cannot create directory '" + target + "': " + e.getMessage());
+                return;
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                for (Path entry : entries) {
+                    Path destination = target.resolve(entry.getFileName().toString());
+                    BasicFileAttributes attributes =
+                            Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        tasks.add(new DirectoryTask(entry, destination));
+                    } else {
+                        tasks.add(new FileTask(entry, destination, attributes));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                errors.add("cannot read directory '" + source + "': " + e.getMessage());
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+        private final BasicFileAttributes attributes;
+
+        FileTask(Path source, Path target, BasicFileAttributes attributes) {
+            this.source = source;
+            this.target = target;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                copy(source, target, attributes);
+            } catch (IOException e) {
+                errors.add("error copying '" + source + "': " + e.getMessage());
+            }
+        }
+    }
+
+    // Copies one file or link and updates the counters
+    private void copy(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        if (update && attributes.isRegularFile() && Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+            BasicFileAttributes existing = Files.readAttributes(target, BasicFileAttributes.class);
+            // Same size and modification time: treat as already in sync. Times are
+            // compared in milliseconds since copies may not keep nanoseconds
+            if (existing.size() == attributes.size()
+                    && existing.lastModifiedTime().toMillis() == attributes.lastModifiedTime().toMillis()) {
+                unchanged.increment();
+                saved.add(attributes.size());
+                return;
+            }
+            long written = syncBlocks(source, target, attributes);
+            files.increment();
+            bytes.add(written);
+            saved.add(attributes.size() - written);
+            return;
+        }
+        if (attributes.isRegularFile() && attributes.size() >= TRANSFER_THRESHOLD) {
+            transfer(source, target, attributes);
+        } else {
+            // Small files and links: the per-file call is cheaper
+            Files.copy(source, target, LinkOption.NOFOLLOW_LINKS,
+                    StandardCopyOption.COPY_ATTRIBUTES,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        files.increment();
+        bytes.add(attributes.size());
+    }
+
+    // Brings an existing target in line with source by rewriting only the
+    // blocks that differ, then trims any extra length. Both files are local,
+    // so blocks are compared byte for byte (a vectorized mismatch) rather
+    // than through rolling checksums. Returns the number of bytes written
+    static long syncBlocks(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        long written = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            int blockSize = (int) Math.min(SYNC_BLOCK_SIZE, Math.max(size, 1));
+            ByteBuffer wanted = ByteBuffer.allocate(blockSize);
+            ByteBuffer current = ByteBuffer.allocate(blockSize);
+            for (long position = 0; position < size; position += blockSize) {
+                readBlock(in, wanted, position);
+                if (wanted.limit() < blockSize) {
+                    // The source ends here, whatever size it had when opened
+                    size = position + wanted.limit();
+                }
+                readBlock(out, current, position);
+                if (!wanted.equals(current)) {
+                    while (wanted.hasRemaining()) {
+                        out.write(wanted, position + wanted.position());
+                    }
+                    written += wanted.limit();
+                }
+            }
+            if (out.size() > size) {
+                out.truncate(size);
+            }
+        }
+        Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+        // Same attributes as a full copy would leave
+        PosixFileAttributeView view = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (view != null) {
+            Files.setPosixFilePermissions(target, view.readAttributes().permissions());
+        }
+        return written;
+    }
+
+    // Fills buffer from position on, stopping early only at end of file
+    private static void readBlock(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    // Copies a large file channel to channel and then its timestamp and permissions
+    static void transfer(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long sent = in.transferTo(position, size - position, out);
+                if (sent <= 0) {
+                    // The file shrank while being copied, keep what is there
+                    break;
+                }
+                position += sent;
+            }
+        }
+        Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+        PosixFileAttributeView view = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (view != null) {
+            Files.setPosixFilePermissions(target, view.readAttributes().permissions());
+        }
+    }
+}
+
+
+// Class responsible for rm -r. Subtrees are removed in parallel on a
+// fork-join pool, each directory only after everything below it is gone.
+// Where the platform offers SecureDirectoryStream, entries are stat'ed and
+// unlinked relative to the open directory handle, so paths are not looked
+// up again for every file
+class TreeRemover {
+    // Files of one directory are unlinked in batches of this many per task
+    static final int BATCH_SIZE = 256;
+
+    final LongAdder files = new LongAdder();
+    final LongAdder directories = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private final int workers;
+
+    TreeRemover(int workers) {
+        this.workers = workers;
+    }
+
+    // Removes the directory and everything below it
+    void removeTree(Path directory) {
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            JobTable.invoke(pool, new DirectoryTask(null, directory, directory));
+        } finally {
+            pool.shutdown();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            errors.add("interrupted, '" + directory + "' is partly removed");
+        }
+    }
+
+    // One line report of what was removed and how long it took
+    String summary(long elapsedNanos) {
+        String report = String.format("rm: removed %d files, %d directories, %d bytes freed in %d ms",
+                files.sum(), directories.sum(), bytes.sum(), elapsedNanos / 1_000_000);
+        return errors.isEmpty() ? report : report + ", " + errors.size() + " errors";
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        // Handle of the parent directory, null for the top of the tree or
+        // when the platform has no SecureDirectoryStream
+        private final SecureDirectoryStream<Path> parent;
+        // Name relative to parent, or the full path without one
+        private final Path name;
+        // Full path, for messages
+        private final Path path;
+
+        DirectoryTask(SecureDirectoryStream<Path> parent, Path name, Path path) {
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            try (DirectoryStream<Path> entries = parent != null
+                    ? parent.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS)
+                    : Files.newDirectoryStream(path)) {
+                SecureDirectoryStream<Path> handle =
+                        entries instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) entries : null;
+                List<RecursiveAction> tasks = new ArrayList<>();
+                List<Path> batch = new ArrayList<>();
+                for (Path entry : entries) {
+                    Path entryName = entry.getFileName();
+                    Path entryPath = path.resolve(entryName);
+                    try {
+                        BasicFileAttributes attributes = handle != null
+                                ? handle.getFileAttributeView(entryName, BasicFileAttributeView.class,
+                                        LinkOption.NOFOLLOW_LINKS).readAttributes()
+                                : Files.readAttributes(entryPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attributes.isDirectory()) {
+                            tasks.add(new DirectoryTask(handle, handle != null ? entryName : entryPath, entryPath));
+                            continue;
+                        }
+                        bytes.add(attributes.size());
+                    } catch (IOException e) {
+                        errors.add("cannot remove '" + entryPath + "': " + e.getMessage());
+                        continue;
+                    }
+                    batch.add(entryName);
+                    if (batch.size() == BATCH_SIZE) {
+                        tasks.add(new BatchTask(handle, batch));
+                        batch = new ArrayList<>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(new BatchTask(handle, batch));
+                }
+                // The handle stays open until every task using it is done
+                invokeAll(tasks);
+            } catch (IOException | DirectoryIteratorException e) {
+                errors.add("cannot read directory '" + path + "': " + e.getMessage());
+                return;
+            }
+            try {
+                if (parent != null) {
+                    parent.deleteDirectory(name);
+                } else {
+                    Files.delete(path);
+                }
+                directories.increment();
+            } catch (IOException e) {
+                errors.add("cannot remove '" + path + "': " + e.getMessage());
+            }
+        }
+
+        // Unlinks files of this directory
+        private class BatchTask extends RecursiveAction {
+            private final SecureDirectoryStream<Path> handle;
+            private final List<Path> names;
+
+            BatchTask(SecureDirectoryStream<Path> handle, List<Path> names) {
+                this.handle = handle;
+                this.names = names;
+            }
+
+            @Override
+            protected void compute() {
+                for (Path entryName : names) {
+                    try {
+                        if (handle != null) {
+                            handle.deleteFile(entryName);
+                        } else {
+                            Files.delete(path.resolve(entryName));
+                        }
+                        files.increment();
+                    } catch (IOException e) {
+                        errors.add("cannot remove '" + path.resolve(entryName) + "': " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
+
+// Class responsible for the attribute side of ls: reading attributes for
+// many entries at once and putting entries in size or time order
+class DirectoryLister {
+    // Directories with at least this many entries are stat'ed from several threads
+    static final int PARALLEL_THRESHOLD = 512;
+    // Stat calls mostly wait on the file system, so use more threads than cores
+    static final int STAT_THREADS = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+    private static final DateTimeFormatter RECENT = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.ENGLISH);
+    private static final DateTimeFormatter OLD = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.ENGLISH);
+
+    // Attributes of a listing, one slot per name. Sort keys are copied into
+    // primitive arrays so ordering never goes back to the file system, and
+    // owner and group names are looked up once, while stat'ing
+    static final class Listing {
+        final String[] names;
+        final BasicFileAttributes[] attributes;
+        final long[] sizes;
+        final long[] modified;
+        final String[] owners;
+        final String[] groups;
+
+        Listing(String[] names) {
+            this.names = names;
+            this.attributes = new BasicFileAttributes[names.length];
+            this.sizes = new long[names.length];
+            this.modified = new long[names.length];
+            this.owners = new String[names.length];
+            this.groups = new String[names.length];
+        }
+    }
+
+    // Names of a plain listing kept compactly: every name sits UTF-8 encoded in one
+    // byte array, so a million entries cost about their text plus an int each
+    static final class NameTable {
+        // Ranges at most this long are finished with an insertion sort
+        private static final int INSERTION_LIMIT = 16;
+        // Ranges longer than this are split across the common pool
+        private static final int PARALLEL_LIMIT = 8192;
+
+        private byte[] bytes = new byte[64 * 1024];
+        // starts[i] is where name i begins, starts[size] is the end of the last name
+        private int[] starts = new int[1024];
+        private int size = 0;
+
+        void add(String name) {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            int end = starts[size];
+            if (end + encoded.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + encoded.length));
+            }
+            if (size + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            System.arraycopy(encoded, 0, bytes, end, encoded.length);
+            starts[++size] = end + encoded.length;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Byte order, the same order ls gives in the C locale
+        int[] sortedOrder() {
+            int[] order = DirectoryLister.identityOrder(size);
+            SortTask task = new SortTask(order, 0, size, 0);
+            if (size > PARALLEL_LIMIT) {
+                ForkJoinPool.commonPool().invoke(task);
+            } else {
+                task.compute();
+            }
+            return order;
+        }
+
+        void println(int index, OutputSink out) throws IOException {
+            out.write(bytes, starts[index], starts[index + 1] - starts[index]);
+            out.write(NEWLINE, 0, 1);
+        }
+
+        private static final byte[] NEWLINE = {'\n'};
+
+        // 0 once the name has ended, so shorter names sort first
+        private int byteAt(int index, int depth) {
+            int position = starts[index] + depth;
+            return position < starts[index + 1] ? (bytes[position] & 0xFF) + 1 : 0;
+        }
+
+        private int compare(int left, int right, int depth) {
+            for (;; depth++) {
+                int a = byteAt(left, depth), b = byteAt(right, depth);
+                if (a != b || a == 0) {
+                    return a - b;
+                }
+            }
+        }
+
+        // Three-way radix quicksort: names sharing a prefix only compare the rest
+        private final class SortTask extends RecursiveAction {
+            private final int[] order;
+            private final int low, high, depth;
+
+            SortTask(int[] order, int low, int high, int depth) {
+                this.order = order;
+                this.low = low;
+                this.high = high;
+                this.depth = depth;
+            }
+
+            @Override
+            protected void compute() {
+                int low = this.low, high = this.high, depth = this.depth;
+                List<SortTask> forked = new ArrayList<>();
+                while (high - low > INSERTION_LIMIT) {
+                    int pivot = median(byteAt(order[low], depth),
+                            byteAt(order[(low + high) >>> 1], depth), byteAt(order[high - 1], depth));
+                    int lt = low, gt = high - 1, i = low;
+                    while (i <= gt) {
+                        int c = byteAt(order[i], depth);
+                        if (c < pivot) {
+                            swap(lt++, i++);
+                        } else if (c > pivot) {
+                            swap(i, gt--);
+                        } else {
+                            i++;
+                        }
+                    }
+                    SortTask less = new SortTask(order, low, lt, depth);
+                    SortTask greater = new SortTask(order, gt + 1, high, depth);
+                    if (high - low > PARALLEL_LIMIT) {
+                        forked.add(less);
+                        forked.add(greater);
+                        less.fork();
+                        greater.fork();
+                    } else {
+                        less.compute();
+                        greater.compute();
+                    }
+                    // Names equal on this byte go on with the next one, unless they all ended
+                    if (pivot == 0) {
+                        low = high;
+                        break;
+                    }
+                    low = lt;
+                    high = gt + 1;
+                    depth++;
+                }
+                for (int i = low + 1; i < high; i++) {
+                    for (int j = i; j > low && compare(order[j - 1], order[j], depth) > 0; j--) {
+                        swap(j - 1, j);
+                    }
+                }
+                for (SortTask task : forked) {
+                    task.join();
+                }
+            }
+
+            private int median(int a, int b, int c) {
+                return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            }
+
+            private void swap(int i, int j) {
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+        }
+    }
+
+    // Reads the attributes of every name with one call each (POSIX ones where supported)
+    static Listing readAttributes(Path directory, String[] names) throws IOException {
+        Listing listing = new Listing(names);
+        Class<? extends BasicFileAttributes> type =
+                directory.getFileSystem().supportedFileAttributeViews().contains("posix")
+                        ? PosixFileAttributes.class : BasicFileAttributes.class;
+        IntConsumer read = i -> {
+            try {
+                BasicFileAttributes attributes =
+                        Files.readAttributes(directory.resolve(names[i]), type, LinkOption.NOFOLLOW_LINKS);
+                listing.attributes[i] = attributes;
+                listing.sizes[i] = attributes.size();
+                listing.modified[i] = attributes.lastModifiedTime().toMillis();
+                if (attributes instanceof PosixFileAttributes) {
+                    // Each call maps the id to a name through the user database
+                    PosixFileAttributes posix = (PosixFileAttributes) attributes;
+                    listing.owners[i] = posix.owner().getName();
+                    listing.groups[i] = posix.group().getName();
+                }
+            } catch (IOException e) {
+                // Entry vanished or can't be read, it is shown with question marks
+            }
+        };
+        if (names.length < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < names.length; i++) {
+                read.accept(i);
+            }
+            return listing;
+        }
+        ForkJoinPool pool = new ForkJoinPool(STAT_THREADS);
+        try {
+            pool.submit(() -> IntStream.range(0, names.length).parallel().forEach(read)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ls interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return listing;
+    }
+
+    static int[] identityOrder(int length) {
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    // Indexes ordered by key, largest first. A stable merge sort on int
+    // indexes, so equal keys keep their name order and nothing is boxed
+    static int[] orderDescending(long[] keys) {
+        int length = keys.length;
+        int[] order = identityOrder(length);
+        int[] merged = new int[length];
+        for (int width = 1; width < length; width *= 2) {
+            for (int low = 0; low < length; low += 2 * width) {
+                int middle = Math.min(low + width, length);
+                int high = Math.min(low + 2 * width, length);
+                int left = low, right = middle, next = low;
+                while (left < middle && right < high) {
+                    merged[next++] = keys[order[right]] > keys[order[left]] ? order[right++] : order[left++];
+                }
+                while (left < middle) {
+                    merged[next++] = order[left++];
+                }
+                while (right < high) {
+                    merged[next++] = order[right++];
+                }
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        return order;
+    }
+
+    // Prints "permissions owner group size date name", columns padded to fit
+    static void printLong(Path directory, Listing listing, int[] order, OutputSink out) throws IOException {
+        int ownerWidth = 1, groupWidth = 1, sizeWidth = 1;
+        for (int i = 0; i < listing.names.length; i++) {
+            BasicFileAttributes attributes = listing.attributes[i];
+            if (listing.owners[i] != null) {
+                ownerWidth = Math.max(ownerWidth, listing.owners[i].length());
+                groupWidth = Math.max(groupWidth, listing.groups[i].length());
+            }
+            if (attributes != null) {
+                sizeWidth = Math.max(sizeWidth, Long.toString(attributes.size()).length());
+            }
+        }
+        long sixMonthsAgo = System.currentTimeMillis() - 182L * 24 * 60 * 60 * 1000;
+        String format = "%s %-" + ownerWidth + "s %-" + groupWidth + "s %" + sizeWidth + "s %s %s";
+        for (int index : order) {
+            BasicFileAttributes attributes = listing.attributes[index];
+            String name = listing.names[index];
+            if (attributes == null) {
+                out.println(String.format(format, "??????????", "?", "?", "?", "            ", name));
+                continue;
+            }
+            String owner = "?", group = "?", permissions = "?????????";
+            if (attributes instanceof PosixFileAttributes) {
+                PosixFileAttributes posix = (PosixFileAttributes) attributes;
+                owner = listing.owners[index];
+                group = listing.groups[index];
+                permissions = PosixFilePermissions.toString(posix.permissions());
+            }
+            char type = attributes.isDirectory() ? 'd' : attributes.isSymbolicLink() ? 'l' : attributes.isRegularFile() ? '-' : '?';
+            long modified = listing.modified[index];
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneId.systemDefault());
+            String date = (modified < sixMonthsAgo ? OLD : RECENT).format(time);
+            if (attributes.isSymbolicLink()) {
+                try {
+                    name += " -> " + Files.readSymbolicLink(directory.resolve(name));
+                } catch (IOException e) {
+                    // Leave the link target out
+                }
+            }
+            out.println(String.format(format, type + permissions, owner, group, listing.sizes[index], date, name));
+        }
+    }
+}
+
+// Class responsible for writing a standard zip archive one entry at a time.
+// Each local header is written with placeholders and patched with the CRC
+// and sizes once the entry data is in, so no entry has to be held in memory
+class ZipWriter {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    // Entries this big may outgrow 32 bit fields, so they get zip64 headers up front
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+    private static final int UTF8_FLAG = 0x0800;
+
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private Entry current;
+    private long position;
+
+    // Entry already written to the archive
+    static final class Entry {
+        final String name;
+        final byte[] nameBytes;
+        final int dosTime;
+        final int method;
+        final boolean zip64;
+        long offset;
+        long crc;
+        long compressedSize;
+        long size;
+
+        Entry(String name, int dosTime, int method, boolean zip64) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.dosTime = dosTime;
+            this.method = method;
+            this.zip64 = zip64;
+        }
+    }
+
+    ZipWriter(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.position = channel.position();
+    }
+
+    // Starts an entry; expectedSize is only used to decide on zip64 headers
+    void beginEntry(String name, long modified, int method, long expectedSize) throws IOException {
+        beginEntry(name, dosTime(modified), method, expectedSize);
+    }
+
+    // Same as above with the timestamp already in MS-DOS form
+    void beginEntry(String name, int dosTime, int method, long expectedSize) throws IOException {
+        current = new Entry(name, dosTime, method, expectedSize >= ZIP64_ENTRY_THRESHOLD);
+        current.offset = position;
+        ByteBuffer header = newBuffer(30 + current.nameBytes.length + (current.zip64 ? 20 : 0));
+        header.putInt(0x04034b50);
+        header.putShort((short) (current.zip64 ? 45 : 20));
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt(0);                      // crc, patched in endEntry
+        header.putInt(current.zip64 ? -1 : 0); // compressed size
+        header.putInt(current.zip64 ? -1 : 0); // size
+        header.putShort((short) current.nameBytes.length);
+        header.putShort((short) (current.zip64 ? 20 : 0));
+        header.put(current.nameBytes);
+        if (current.zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+        header.flip();
+        writeFully(header);
+    }
+
+    // Appends data of the current entry, already in its final (compressed) form
+    void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        writeFully(data);
+        current.compressedSize += length;
+    }
+
+    // Writes a whole entry whose data is copied as is, still compressed,
+    // from another archive
+    void copyEntry(String name, int dosTime, int method, long crc, long size,
+                   FileChannel source, long dataOffset, long compressedSize) throws IOException {
+        beginEntry(name, dosTime, method, Math.max(size, compressedSize));
+        long copied = 0;
+        while (copied < compressedSize) {
+            long sent = source.transferTo(dataOffset + copied, compressedSize - copied, channel);
+            if (sent <= 0) {
+                throw new EOFException("archive ends inside entry " + name);
+            }
+            copied += sent;
+        }
+        position += copied;
+        current.compressedSize += copied;
+        endEntry(crc, size);
+    }
+
+    // Finishes the current entry by patching its local header
+    void endEntry(long crc, long size) throws IOException {
+        Entry entry = current;
+        entry.crc = crc;
+        entry.size = size;
+        if (!entry.zip64 && (size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT)) {
+            throw new IOException("entry grew past 4 GB while being written: " + entry.name);
+        }
+        ByteBuffer patch = newBuffer(12);
+        patch.putInt((int) crc);
+        patch.putInt(entry.zip64 ? -1 : (int) entry.compressedSize);
+        patch.putInt(entry.zip64 ? -1 : (int) size);
+        patch.flip();
+        channel.write(patch, entry.offset + 14);
+        if (entry.zip64) {
+            ByteBuffer sizes = newBuffer(16);
+            sizes.putLong(size);
+            sizes.putLong(entry.compressedSize);
+            sizes.flip();
+            channel.write(sizes, entry.offset + 30 + entry.nameBytes.length + 4);
+        }
+        entries.add(entry);
+        current = null;
+    }
+
+    // Writes the central directory; the archive is complete afterwards
+    void finish() throws IOException {
+        long directoryOffset = position;
+        for (Entry entry : entries) {
+            boolean zip64Sizes = entry.zip64 || entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            boolean zip64Offset = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (zip64Sizes || zip64Offset ? 4 : 0) + (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+            ByteBuffer header = newBuffer(46 + entry.nameBytes.length + extraLength);
+            header.putInt(0x02014b50);
+            header.putShort((short) (zip64Sizes || zip64Offset ? 45 : 20)); // version made by
+            header.putShort((short) (zip64Sizes || zip64Offset ? 45 : 20)); // version needed
+            header.putShort((short) UTF8_FLAG);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt(zip64Sizes ? -1 : (int) entry.compressedSize);
+            header.putInt(zip64Sizes ? -1 : (int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0);           // external attributes
+            header.putInt(zip64Offset ? -1 : (int) entry.offset);
+            header.put(entry.nameBytes);
+            if (extraLength > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) (extraLength - 4));
+                if (zip64Sizes) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    header.putLong(entry.offset);
+                }
+            }
+            header.flip();
+            writeFully(header);
+        }
+        long directorySize = position - directoryOffset;
+
+        boolean zip64 = entries.size() >= 0xFFFF || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+        if (zip64) {
+            long recordOffset = position;
+            ByteBuffer record = newBuffer(56 + 20);
+            record.putInt(0x06064b50);
+            record.putLong(44);
+            record.putShort((short) 45);
+            record.putShort((short) 45);
+            record.putInt(0);
+            record.putInt(0);
+            record.putLong(entries.size());
+            record.putLong(entries.size());
+            record.putLong(directorySize);
+            record.putLong(directoryOffset);
+            // Locator pointing back at the zip64 record
+            record.putInt(0x07064b50);
+            record.putInt(0);
+            record.putLong(recordOffset);
+            record.putInt(1);
+            record.flip();
+            writeFully(record);
+        }
+        ByteBuffer end = newBuffer(22);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) (zip64 ? 0xFFFF : entries.size()));
+        end.putShort((short) (zip64 ? 0xFFFF : entries.size()));
+        end.putInt(zip64 ? -1 : (int) directorySize);
+        end.putInt(zip64 ? -1 : (int) directoryOffset);
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(end);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Packs a timestamp into the MS-DOS date and time fields zip uses
+    static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+}
+
+// Class responsible for reading the central directory of an existing zip,
+// so its entries can be listed or copied without inflating them
+class ZipArchiveReader implements Closeable {
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    // End record (22 bytes) plus the longest possible comment
+    private static final int MAX_END_SEARCH = 22 + 0xFFFF;
+    // Names are UTF-8 when flag bit 11 is set and CP437 otherwise, as zip
+    // tools that predate UTF-8 wrote them
+    private static final int UTF8_FLAG = 0x0800;
+    private static final Charset CP437 = Charset.forName("IBM437");
+
+    // Entry as described by the central directory
+    static final class Entry {
+        String name;
+        int flags;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    ZipArchiveReader(Path archive) throws IOException {
+        this.channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    // Entry with this name or null
+    Entry entry(String name) {
+        return byName.get(name);
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    // Where the entry data starts, found from the lengths in its local header
+    long dataOffset(Entry entry) throws IOException {
+        ByteBuffer lengths = read(entry.localHeaderOffset + 26, 4);
+        return entry.localHeaderOffset + 30 + (lengths.getShort() & 0xFFFF) + (lengths.getShort() & 0xFFFF);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int searchLength = (int) Math.min(size, MAX_END_SEARCH);
+        ByteBuffer tail = read(size - searchLength, searchLength);
+        int end = -1;
+        for (int i = searchLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == 0x06054b50) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("not a zip archive (no end of central directory)");
+        }
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & ZIP64_LIMIT;
+        long directoryOffset = tail.getInt(end + 16) & ZIP64_LIMIT;
+
+        // Big archives keep the real numbers in the zip64 end record
+        long endPosition = size - searchLength + end;
+        if ((count == 0xFFFF || directorySize == ZIP64_LIMIT || directoryOffset == ZIP64_LIMIT) && endPosition >= 20) {
+            ByteBuffer locator = read(endPosition - 20, 20);
+            if (locator.getInt(0) == 0x07064b50) {
+                ByteBuffer record = read(locator.getLong(8), 56);
+                if (record.getInt(0) != 0x06064b50) {
+                    throw new ZipException("bad zip64 end of central directory");
+                }
+                count = record.getLong(32);
+                directorySize = record.getLong(40);
+                directoryOffset = record.getLong(48);
+            }
+        }
+
+        MappedByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize);
+        directory.order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < count; i++) {
+            if (directory.remaining() < 46 || directory.getInt() != 0x02014b50) {
+                throw new ZipException("bad central directory entry " + i);
+            }
+            Entry entry = new Entry();
+            directory.position(directory.position() + 4); // versions
+            entry.flags = directory.getShort() & 0xFFFF;
+            entry.method = directory.getShort() & 0xFFFF;
+            entry.dosTime = directory.getInt();
+            entry.crc = directory.getInt() & ZIP64_LIMIT;
+            entry.compressedSize = directory.getInt() & ZIP64_LIMIT;
+            entry.size = directory.getInt() & ZIP64_LIMIT;
+            int nameLength = directory.getShort() & 0xFFFF;
+            int extraLength = directory.getShort() & 0xFFFF;
+            int commentLength = directory.getShort() & 0xFFFF;
+            directory.position(directory.position() + 8); // disk, internal and external attributes
+            entry.localHeaderOffset = directory.getInt() & ZIP64_LIMIT;
+
+            byte[] name = new byte[nameLength];
+            directory.get(name);
+            // Decoded either way, the name is written back as UTF-8 when copied
+            entry.name = new String(name, (entry.flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : CP437);
+            int extraEnd = directory.position() + extraLength;
+            readZip64Extra(directory, extraEnd, entry);
+            directory.position(extraEnd + commentLength);
+
+            entries.add(entry);
+            byName.put(entry.name, entry);
+        }
+    }
+
+    // Fills in the fields that were too big for the 32 bit slots
+    private static void readZip64Extra(ByteBuffer directory, int extraEnd, Entry entry) {
+        while (directory.position() + 4 <= extraEnd) {
+            int id = directory.getShort() & 0xFFFF;
+            int length = directory.getShort() & 0xFFFF;
+            int next = directory.position() + length;
+            if (id == 0x0001) {
+                if (entry.size == ZIP64_LIMIT) {
+                    entry.size = directory.getLong();
+                }
+                if (entry.compressedSize == ZIP64_LIMIT) {
+                    entry.compressedSize = directory.getLong();
+                }
+                if (entry.localHeaderOffset == ZIP64_LIMIT) {
+                    entry.localHeaderOffset = directory.getLong();
+                }
+            }
+            directory.position(next);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("zip archive is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Class responsible for compressing zip entries on several threads, in the
+// style of pigz. Files are cut into blocks that are deflated independently
+// (each primed with the 32 KB before it as dictionary) and the compressed
+// blocks are written back in order, so the result is an ordinary zip
+class ParallelZipper {
+    static final int BLOCK_SIZE = 128 * 1024;
+    static final int DICTIONARY_SIZE = 32 * 1024;
+    // Bytes of a large file that are trial compressed to judge the whole file
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // Entries that keep more than this share of their size are stored instead
+    static final double STORE_RATIO = 0.95;
+
+    // Extensions of formats that are compressed already
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "zip", "jar", "war", "ear", "apk", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "mp4", "m4a", "mkv", "avi", "mov",
+            "ogg", "flac", "woff", "woff2", "docx", "xlsx", "pptx", "odt"));
+
+    // Running totals for one kind of entry, reported after the archive is written
+    static final class EntryClass {
+        final String name;
+        final LongAdder entries = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        EntryClass(String name) {
+            this.name = name;
+        }
+    }
+
+    final EntryClass deflated = new EntryClass("deflated");
+    final EntryClass storedByLevel = new EntryClass("stored (-0)");
+    final EntryClass storedByType = new EntryClass("stored (type)");
+    final EntryClass storedBySample = new EntryClass("stored (sampled)");
+    final EntryClass storedNoGain = new EntryClass("stored (no gain)");
+
+    // A file and the name it gets inside the archive
+    static final class Source {
+        final Path file;
+        final String name;
+
+        Source(Path file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+
+    // Entry whose blocks are being compressed
+    private static final class PendingEntry {
+        final String name;
+        final long modified;
+        final long expectedSize;
+        final CRC32 crc = new CRC32();
+        long size;
+        // A worker may still switch a single block entry to stored
+        volatile int method = ZipWriter.DEFLATED;
+        volatile EntryClass entryClass;
+
+        PendingEntry(String name, long modified, long expectedSize) {
+            this.name = name;
+            this.modified = modified;
+            this.expectedSize = expectedSize;
+        }
+    }
+
+    // One block handed to the pool, or an entry copied from an older
+    // archive (when raw is set), in archive order
+    private static final class PendingBlock {
+        final PendingEntry entry;
+        final boolean first;
+        final boolean last;
+        final Future<byte[]> compressed;
+        final RawEntry raw;
+
+        PendingBlock(PendingEntry entry, boolean first, boolean last, Future<byte[]> compressed, RawEntry raw) {
+            this.entry = entry;
+            this.first = first;
+            this.last = last;
+            this.compressed = compressed;
+            this.raw = raw;
+        }
+    }
+
+    // Entry of an existing archive to be copied without recompressing
+    private static final class RawEntry {
+        final ZipArchiveReader archive;
+        final ZipArchiveReader.Entry entry;
+        final int dosTime;
+
+        RawEntry(ZipArchiveReader archive, ZipArchiveReader.Entry entry, int dosTime) {
+            this.archive = archive;
+            this.entry = entry;
+            this.dosTime = dosTime;
+        }
+    }
+
+    private final ZipWriter writer;
+    private final ExecutorService pool;
+    private final int level;
+    private final int maxInFlight;
+    private final ArrayDeque<PendingBlock> inFlight = new ArrayDeque<>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    ParallelZipper(ZipWriter writer, int workers, int level) {
+        this.writer = writer;
+        this.level = level;
+        // Bounds memory to a few blocks per worker
+        this.maxInFlight = workers * 4;
+        this.pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "zip-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Reads a file block by block and queues it as the next entry
+    void add(Source source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source.file, BasicFileAttributes.class);
+        PendingEntry entry = new PendingEntry(source.name,
+                attributes.lastModifiedTime().toMillis(), attributes.size());
+        try (FileChannel in = FileChannel.open(source.file, StandardOpenOption.READ)) {
+            byte[] previous = null;
+            byte[] block = readBlock(in);
+            while (true) {
+                // Reading one block ahead tells whether this one is the last
+                byte[] next = block.length < BLOCK_SIZE ? new byte[0] : readBlock(in);
+                boolean last = next.length == 0;
+                if (previous == null) {
+                    chooseMethod(entry, source.name, block, last);
+                }
+                entry.crc.update(block);
+                entry.size += block.length;
+                submit(entry, previous, block, previous == null, last);
+                if (last) {
+                    break;
+                }
+                previous = block;
+                block = next;
+            }
+        }
+    }
+
+    // Decides up front whether an entry is worth deflating. Single block
+    // entries are judged by the worker after compressing them instead
+    private void chooseMethod(PendingEntry entry, String name, byte[] firstBlock, boolean singleBlock) {
+        if (level == 0) {
+            entry.method = ZipWriter.STORED;
+            entry.entryClass = storedByLevel;
+        } else if (COMPRESSED_TYPES.contains(extension(name))) {
+            entry.method = ZipWriter.STORED;
+            entry.entryClass = storedByType;
+        } else if (singleBlock) {
+            entry.entryClass = deflated;
+        } else {
+            // The trial counts towards whichever class the entry ends up in
+            long started = System.nanoTime();
+            if (isIncompressible(firstBlock)) {
+                entry.method = ZipWriter.STORED;
+                entry.entryClass = storedBySample;
+            } else {
+                entry.entryClass = deflated;
+            }
+            entry.entryClass.nanos.add(System.nanoTime() - started);
+        }
+    }
+
+    // Trial compresses the start of a file at the fastest level
+    private static boolean isIncompressible(byte[] block) {
+        int length = Math.min(SAMPLE_SIZE, block.length);
+        Deflater trial = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            trial.setInput(block, 0, length);
+            trial.finish();
+            byte[] out = new byte[length + 64];
+            while (!trial.finished()) {
+                trial.deflate(out);
+            }
+            return trial.getBytesWritten() >= length * STORE_RATIO;
+        } finally {
+            trial.end();
+        }
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || dot < name.lastIndexOf('/') ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    // Bytes of all entries compressed or stored so far
+    long bytesIn() {
+        long total = 0;
+        for (EntryClass entryClass : Arrays.asList(deflated, storedByLevel, storedByType, storedBySample, storedNoGain)) {
+            total += entryClass.bytesIn.sum();
+        }
+        return total;
+    }
+
+    // One line per kind of entry with sizes, ratio and time spent
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (EntryClass entryClass : Arrays.asList(deflated, storedByLevel, storedByType, storedBySample, storedNoGain)) {
+            long count = entryClass.entries.sum();
+            if (count == 0) {
+                continue;
+            }
+            long in = entryClass.bytesIn.sum();
+            long out = entryClass.bytesOut.sum();
+            lines.add(String.format("zip: %-17s %6d entries %14d -> %14d bytes (%5.1f%%) %7d ms",
+                    entryClass.name, count, in, out, in == 0 ? 100.0 : out * 100.0 / in,
+                    entryClass.nanos.sum() / 1_000_000));
+        }
+        return lines;
+    }
+
+    // Queues an entry of an existing archive to be copied as raw compressed bytes
+    void addRaw(ZipArchiveReader archive, ZipArchiveReader.Entry entry, int dosTime) throws IOException {
+        if (inFlight.size() >= maxInFlight) {
+            writeNext();
+        }
+        inFlight.add(new PendingBlock(null, true, true, null, new RawEntry(archive, entry, dosTime)));
+    }
+
+    // Whether an archived entry still holds the current content of a file:
+    // the size must match, and then either the timestamp or the CRC
+    static boolean isUnchanged(ZipArchiveReader.Entry entry, Path file) throws IOException {
+        if (entry.isEncrypted() || (entry.method != ZipWriter.STORED && entry.method != ZipWriter.DEFLATED)) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() != entry.size) {
+            return false;
+        }
+        if (ZipWriter.dosTime(attributes.lastModifiedTime().toMillis()) == entry.dosTime) {
+            return true;
+        }
+        // Touched but maybe not modified; a CRC pass is still far cheaper than deflate
+        CRC32 crc = new CRC32();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue() == entry.crc;
+    }
+
+    // Writes out everything still queued
+    void finish() throws IOException {
+        while (!inFlight.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    // Stops the workers and frees the native deflater memory
+    void shutdown() {
+        pool.shutdownNow();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private void submit(PendingEntry entry, byte[] previous, byte[] block, boolean first, boolean last) throws IOException {
+        if (inFlight.size() >= maxInFlight) {
+            writeNext();
+        }
+        Future<byte[]> data = entry.method == ZipWriter.STORED
+                ? CompletableFuture.completedFuture(block)
+                : pool.submit(() -> deflate(entry, previous, block, first, last));
+        inFlight.add(new PendingBlock(entry, first, last, data, null));
+    }
+
+    // Waits for the oldest block and appends it to the archive
+    private void writeNext() throws IOException {
+        PendingBlock block = inFlight.poll();
+        if (block.raw != null) {
+            ZipArchiveReader.Entry old = block.raw.entry;
+            writer.copyEntry(old.name, block.raw.dosTime, old.method, old.crc, old.size,
+                    block.raw.archive.channel(), block.raw.archive.dataOffset(old), old.compressedSize);
+            return;
+        }
+        byte[] compressed;
+        try {
+            compressed = block.compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("zip interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed: " + e.getCause(), e.getCause());
+        }
+        PendingEntry entry = block.entry;
+        if (block.first) {
+            writer.beginEntry(entry.name, entry.modified, entry.method, entry.expectedSize);
+        }
+        writer.write(ByteBuffer.wrap(compressed));
+        entry.entryClass.bytesOut.add(compressed.length);
+        if (block.last) {
+            // The whole file was read before its last block was queued, so the CRC is complete
+            writer.endEntry(entry.crc.getValue(), entry.size);
+            entry.entryClass.entries.increment();
+            entry.entryClass.bytesIn.add(entry.size);
+        }
+    }
+
+    // Deflates one block. Blocks other than the last end with a sync flush so
+    // they line up on a byte boundary and can simply be concatenated. An
+    // entry made of a single block is stored when deflating did not pay off
+    private byte[] deflate(PendingEntry entry, byte[] previous, byte[] block, boolean first, boolean last) {
+        long started = System.nanoTime();
+        byte[] compressed = deflate(previous, block, last);
+        if (first && last && compressed.length >= block.length) {
+            entry.method = ZipWriter.STORED;
+            entry.entryClass = storedNoGain;
+            compressed = block;
+        }
+        entry.entryClass.nanos.add(System.nanoTime() - started);
+        return compressed;
+    }
+
+    private byte[] deflate(byte[] previous, byte[] block, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            if (previous != null) {
+                int length = Math.min(DICTIONARY_SIZE, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(block);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] out = new byte[block.length + block.length / 8 + 64];
+            int written = 0;
+            while (true) {
+                int space = out.length - written;
+                int produced = last ? deflater.deflate(out, written, space)
+                        : deflater.deflate(out, written, space, Deflater.SYNC_FLUSH);
+                written += produced;
+                boolean done = last ? deflater.finished() : produced < space;
+                if (done) {
+                    return Arrays.copyOf(out, written);
+                }
+                if (written == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+            }
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    private static byte[] readBlock(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+            // keep reading until the block is full or the file ends
+        }
+        return buffer.position() == BLOCK_SIZE ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
+
+
+// Class responsible for the search side of grep. Files are cut into line
+// aligned chunks that workers search at the same time, memory mapped when
+// large. A literal that every match has to contain is looked for first, so
+// the regular expression only runs on the few lines that can match
+class LineSearcher {
+    static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    // Files up to this size are read into the heap, mapping costs more
+    static final int MAP_THRESHOLD = 64 * 1024;
+    // Bytes at the start of a file checked for NUL to tell binary files apart
+    static final int BINARY_PROBE = 8 * 1024;
+
+    private static final byte[] LOWER = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            LOWER[i] = (byte) (i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+        }
+    }
+
+    // Matches found in one chunk. Line numbers are relative to the chunk,
+    // the writer adds the lines of the chunks before it
+    static final class Matches {
+        // Newlines in the chunk, only counted when line numbers are wanted
+        long lines;
+        int count;
+        boolean binary;
+        long[] lineNumbers = new long[16];
+        // Matched lines back to back, ends[i] is where line i stops
+        int[] ends = new int[16];
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        void add(long lineNumber, ByteBuffer buffer, int start, int end, boolean keep) {
+            if (keep) {
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                    lineNumbers = Arrays.copyOf(lineNumbers, count * 2);
+                }
+                byte[] line = new byte[end - start];
+                buffer.get(start, line);
+                text.write(line, 0, line.length);
+                lineNumbers[count] = lineNumber;
+                ends[count] = text.size();
+            }
+            count++;
+        }
+    }
+
+    // Null when the literal alone decides
+    private final Pattern regex;
+    // Null when the pattern has no literal every match must contain
+    private final byte[] literal;
+    private final boolean ignoreCase;
+    private final boolean countLines;
+    private final boolean keepLines;
+    private final boolean firstOnly;
+    private final ThreadLocal<Matcher> matchers;
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[256]);
+
+    // fixed takes the pattern as plain text, countLines is for -n, keepLines
+    // is false when only counts are printed and firstOnly stops at the first match
+    LineSearcher(String pattern, boolean fixed, boolean ignoreCase,
+                 boolean countLines, boolean keepLines, boolean firstOnly) {
+        boolean ascii = pattern.chars().allMatch(c -> c < 128);
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | (ascii ? 0 : Pattern.UNICODE_CASE) : 0;
+        String required = fixed ? pattern : requiredLiteral(pattern);
+        if (required != null && (required.isEmpty() || (ignoreCase && !ascii))) {
+            required = null;
+        }
+        this.literal = required == null ? null
+                : (ignoreCase ? required.toLowerCase(Locale.ROOT) : required).getBytes(StandardCharsets.UTF_8);
+        // A fixed string found as it is needs no second look
+        boolean literalDecides = fixed && literal != null;
+        this.regex = literalDecides ? null : Pattern.compile(fixed ? Pattern.quote(pattern) : pattern, flags);
+        this.matchers = regex == null ? null : ThreadLocal.withInitial(() -> regex.matcher(""));
+        this.ignoreCase = ignoreCase;
+        this.countLines = countLines;
+        this.keepLines = keepLines;
+        this.firstOnly = firstOnly;
+    }
+
+    // Splits [0, size) into ranges of about CHUNK_SIZE that end right after a newline
+    static List<long[]> chunks(FileChannel channel, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = start + CHUNK_SIZE;
+            if (end >= size) {
+                end = size;
+            } else {
+                end = nextLineStart(channel, end - 1, size, probe);
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    // Searches one range of a file
+    Matches search(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer;
+        if (end - start <= MAP_THRESHOLD) {
+            buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) != -1) {
+                // keep reading until the range is in
+            }
+            buffer.flip();
+        } else {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        Matches matches = new Matches();
+        if (start == 0) {
+            matches.binary = isBinary(buffer);
+        }
+        search(buffer, matches);
+        return matches;
+    }
+
+    private static boolean isBinary(ByteBuffer buffer) {
+        int limit = Math.min(buffer.limit(), BINARY_PROBE);
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Searches whole lines in buffer[0, limit), a last line may lack its newline
+    void search(ByteBuffer buffer, Matches matches) {
+        int limit = buffer.limit();
+        int position = 0;
+        int counted = 0;
+        long line = 0;
+        while (position < limit) {
+            int lineStart;
+            int lineEnd;
+            if (literal != null) {
+                int hit = ignoreCase ? indexOfFolded(buffer, position, limit) : indexOf(buffer, position, limit);
+                if (hit < 0) {
+                    break;
+                }
+                lineStart = hit;
+                while (lineStart > position && buffer.get(lineStart - 1) != '\n') {
+                    lineStart--;
+                }
+                lineEnd = lineEnd(buffer, hit + literal.length, limit);
+            } else {
+                lineStart = position;
+                lineEnd = lineEnd(buffer, position, limit);
+            }
+            if (countLines) {
+                line += countNewlines(buffer, counted, lineStart);
+                counted = lineStart;
+            }
+            if (regex == null || regexMatches(buffer, lineStart, lineEnd)) {
+                matches.add(line, buffer, lineStart, lineEnd, keepLines);
+                if (firstOnly) {
+                    break;
+                }
+            }
+            position = lineEnd + 1;
+        }
+        if (countLines) {
+            matches.lines = line + countNewlines(buffer, counted, limit);
+        }
+    }
+
+    private int indexOf(ByteBuffer buffer, int from, int to) {
+        byte first = literal[0];
+        int last = to - literal.length;
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < literal.length && buffer.get(i + j) == literal[j]) {
+                j++;
+            }
+            if (j == literal.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfFolded(ByteBuffer buffer, int from, int to) {
+        byte first = literal[0];
+        int last = to - literal.length;
+        for (int i = from; i <= last; i++) {
+            if (LOWER[buffer.get(i) & 0xFF] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < literal.length && LOWER[buffer.get(i + j) & 0xFF] == literal[j]) {
+                j++;
+            }
+            if (j == literal.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from, int limit) {
+        while (from < limit && buffer.get(from) != '\n') {
+            from++;
+        }
+        return from;
+    }
+
+    private static long countNewlines(ByteBuffer buffer, int from, int to) {
+        long newlines = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                newlines++;
+            }
+        }
+        return newlines;
+    }
+
+    private boolean regexMatches(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        byte[] bytes = scratch.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            scratch.set(bytes);
+        }
+        buffer.get(start, bytes, 0, length);
+        return matchers.get().reset(new String(bytes, 0, length, StandardCharsets.UTF_8)).find();
+    }
+
+    // Longest run of plain characters outside groups and classes that every
+    // match of the regular expression contains, or null. Patterns this can't
+    // judge safely (alternation, inline flags, quoting) give null
+    static String requiredLiteral(String regex) {
+        if (regex.indexOf('|') >= 0 || regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                char next = regex.charAt(i + 1);
+                i += 2;
+                if (!Character.isLetterOrDigit(next) && depth == 0) {
+                    run.append(next);
+                    continue;
+                }
+                // \d, \x41, \p{Alpha} and the like: skip their arguments too
+                best = longer(best, run);
+                while (i < length && (Character.isLetterOrDigit(regex.charAt(i)) || regex.charAt(i) == '{')) {
+                    if (regex.charAt(i) == '{') {
+                        int close = regex.indexOf('}', i);
+                        i = close < 0 ? length : close;
+                    }
+                    i++;
+                }
+            } else if (c == '[') {
+                best = longer(best, run);
+                i = classEnd(regex, i + 1);
+            } else if (c == '(' || c == ')') {
+                best = longer(best, run);
+                depth += c == '(' ? 1 : -1;
+                i++;
+            } else if (c == '?' || c == '*' || c == '{') {
+                // The character before may be absent
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                best = longer(best, run);
+                if (c == '{') {
+                    int close = regex.indexOf('}', i);
+                    i = close < 0 ? length : close;
+                }
+                i++;
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                // With + the character is there once, but what follows may not be next to it
+                best = longer(best, run);
+                i++;
+            } else {
+                if (depth == 0) {
+                    run.append(c);
+                } else {
+                    best = longer(best, run);
+                }
+                i++;
+            }
+        }
+        best = longer(best, run);
+        return best.isEmpty() ? null : best;
+    }
+
+    // Keeps the longer of the two and empties the run
+    private static String longer(String best, StringBuilder run) {
+        String candidate = run.toString();
+        run.setLength(0);
+        return candidate.length() > best.length() ? candidate : best;
+    }
+
+    // Index just past the ] that closes a character class opened before from
+    private static int classEnd(String regex, int from) {
+        int i = from;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        int nested = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                nested++;
+            } else if (c == ']') {
+                if (nested == 0) {
+                    return i + 1;
+                }
+                nested--;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+}
+
+
+// Class responsible for walking a tree for find and du. Subdirectories are
+// split across a work-stealing pool and every entry is stat'ed exactly once.
+// Each directory queues its lines in entry order and the caller writes them
+// while the walk goes on, a subtree as soon as everything before it is out,
+// so the output is the same as a serial walk however the work was stolen
+class TreeWalker {
+    // Decides what is printed for an entry. Called from worker threads
+    interface Visitor {
+        // Line for an entry, or null. The root has depth 0
+        String visit(String name, BasicFileAttributes attributes, int depth);
+
+        // Line written after everything below a directory, given the size of
+        // the files below it
+        default String leave(String name, long bytes, int depth) {
+            return null;
+        }
+    }
+
+    // Where the lines of a walk go, in order
+    private interface Lines {
+        void add(String line) throws IOException;
+    }
+
+    // What one directory produces: lines and the listings of its
+    // subdirectories, in the order they were read. Items leave the queue as
+    // soon as they are written
+    private static final class Listing {
+        private final ArrayDeque<Object> items = new ArrayDeque<>();
+        private boolean complete;
+        // Size of the files below, final once complete
+        volatile long bytes;
+
+        synchronized void add(Object item) {
+            items.add(item);
+            notifyAll();
+        }
+
+        synchronized void complete() {
+            complete = true;
+            notifyAll();
+        }
+
+        // The next line or listing, null once the directory is done
+        synchronized Object next() throws InterruptedException {
+            while (items.isEmpty() && !complete) {
+                wait();
+            }
+            return items.poll();
+        }
+    }
+
+    final LongAdder entries = new LongAdder();
+    final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    private final int workers;
+    // Entries deeper than this are not looked at
+    private final int maxDepth;
+    private final Visitor visitor;
+
+    TreeWalker(int workers, int maxDepth, Visitor visitor) {
+        this.workers = workers;
+        this.maxDepth = maxDepth;
+        this.visitor = visitor;
+    }
+
+    // Walks root, shown as name, writes the lines and returns the size of the
+    // files found (their apparent size, as du --apparent-size gives)
+    long walk(Path root, String name, OutputSink out) throws IOException {
+        return run(root, name, out::println);
+    }
+
+    // The same walk with the lines handed back, in order, instead of written
+    List<String> collect(Path root, String name) {
+        List<String> lines = new ArrayList<>();
+        try {
+            run(root, name, lines::add);
+        } catch (IOException e) {
+            // Adding to a list does not fail
+        }
+        return lines;
+    }
+
+    private long run(Path root, String name, Lines lines) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            errors.add("'" + name + "': " + (e instanceof NoSuchFileException ? "No such file or directory" : e.getMessage()));
+            return 0;
+        }
+        EntryTask task = new EntryTask(root, name, attributes, 0);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.execute(task);
+            drain(task.listing, lines);
+            return task.listing.bytes;
+        } catch (InterruptedException e) {
+            // kill reached the job running the walk
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Writes a listing in order, waiting for whatever is not there yet
+    private static void drain(Listing listing, Lines lines) throws IOException, InterruptedException {
+        Object item;
+        while ((item = listing.next()) != null) {
+            if (item instanceof Listing) {
+                drain((Listing) item, lines);
+            } else {
+                lines.add((String) item);
+            }
+        }
+    }
+
+    private class EntryTask extends RecursiveAction {
+        private final Path path;
+        private final String name;
+        private final BasicFileAttributes attributes;
+        private final int depth;
+        final Listing listing = new Listing();
+
+        EntryTask(Path path, String name, BasicFileAttributes attributes, int depth) {
+            this.path = path;
+            this.name = name;
+            this.attributes = attributes;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            // Completed whatever happens, the writer waits for it
+            try {
+                walk();
+            } finally {
+                listing.complete();
+            }
+        }
+
+        private void walk() {
+            add(visitor.visit(name, attributes, depth));
+            entries.increment();
+            if (!attributes.isDirectory()) {
+                listing.bytes = attributes.size();
+                return;
+            }
+            long bytes = 0;
+            if (depth < maxDepth) {
+                // Files are handled right here, only directories become tasks
+                List<EntryTask> tasks = new ArrayList<>();
+                String prefix = name.endsWith("/") ? name : name + "/";
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                    for (Path child : children) {
+                        String childName = prefix + child.getFileName();
+                        BasicFileAttributes childAttributes;
+                        try {
+                            childAttributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            errors.add("'" + childName + "': " + e.getMessage());
+                            continue;
+                        }
+                        if (childAttributes.isDirectory()) {
+                            EntryTask task = new EntryTask(child, childName, childAttributes, depth + 1);
+                            tasks.add(task);
+                            listing.add(task.listing);
+                            task.fork();
+                        } else {
+                            add(visitor.visit(childName, childAttributes, depth + 1));
+                            entries.increment();
+                            bytes += childAttributes.size();
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    errors.add("'" + name + "': " + e.getMessage());
+                }
+                for (EntryTask task : tasks) {
+                    task.join();
+                    bytes += task.listing.bytes;
+                }
+            }
+            listing.bytes = bytes;
+            add(visitor.leave(name, bytes, depth));
+        }
+
+        private void add(String line) {
+            if (line != null) {
+                listing.add(line);
+            }
+        }
+    }
+}
+
+// Class responsible for sort. Lines are gathered up to half the memory
+// budget, then sorted with a parallel sort and spilled to a temporary run
+// file while the next batch is read. Runs are then merged through a heap,
+// at most MERGE_WIDTH at a time, so memory stays bounded by the budget
+// whatever the size of the input. Input that fits is sorted in memory
+class ExternalSorter {
+    // Runs merged at once, more take several passes
+    static final int MERGE_WIDTH = 64;
+    // Rough heap cost of a line besides its characters
+    static final int LINE_OVERHEAD = 64;
+
+    // A line with its sort key, which is computed once
+    static final class Line {
+        final String text;
+        final String key;
+
+        Line(String text, String key) {
+            this.text = text;
+            this.key = key;
+        }
+    }
+
+    private final Comparator<Line> order;
+    // Keys only, what -u compares
+    private final Comparator<Line> keys;
+    private final boolean unique;
+    private final long budget;
+    // Key fields, from and to counted from 1, to 0 means up to the end of the line
+    private final int keyFrom, keyTo;
+    // Field separator, 0 for runs of blanks
+    private final char separator;
+    private final boolean numeric;
+    private final List<Path> runs = new ArrayList<>();
+    private final ExecutorService spiller = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "sort-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    long bytesRead;
+
+    ExternalSorter(boolean numeric, boolean reverse, boolean unique, int keyFrom, int keyTo, char separator, long budget) {
+        this.numeric = numeric;
+        this.unique = unique;
+        this.keyFrom = keyFrom;
+        this.keyTo = keyTo;
+        this.separator = separator;
+        this.budget = budget;
+        keys = numeric ? (a, b) -> compareNumbers(a.key, b.key) : (a, b) -> a.key.compareTo(b.key);
+        // Lines with equal keys fall back to comparing the whole line, unless -u
+        Comparator<Line> order = unique ? keys : keys.thenComparing((a, b) -> a.text.compareTo(b.text));
+        this.order = reverse ? order.reversed() : order;
+    }
+
+    // Sorts all lines of the readers, in order, and writes them to out
+    void sort(List<BufferedReader> inputs, OutputSink out) throws IOException {
+        try {
+            List<Line> batch = new ArrayList<>();
+            long batchBytes = 0;
+            Future<?> spilling = null;
+            for (BufferedReader input : inputs) {
+                String text;
+                while ((text = input.readLine()) != null) {
+                    bytesRead += text.length() + 1;
+                    Line line = line(text);
+                    batch.add(line);
+                    batchBytes += LINE_OVERHEAD + 2L * (text.length() + (line.key == text ? 0 : line.key.length()));
+                    if (batchBytes >= budget / 2) {
+                        // One batch spills while the next one fills
+                        await(spilling);
+                        spilling = spill(batch);
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                }
+            }
+            await(spilling);
+            if (runs.isEmpty()) {
+                Line[] lines = batch.toArray(new Line[0]);
+                Arrays.parallelSort(lines, order);
+                write(Arrays.asList(lines).iterator(), out);
+                return;
+            }
+            if (!batch.isEmpty()) {
+                await(spill(batch));
+            }
+            batch = null;
+            while (runs.size() > MERGE_WIDTH) {
+                // Merge the oldest runs into one until a single pass is enough
+                List<Path> group = new ArrayList<>(runs.subList(0, MERGE_WIDTH));
+                runs.subList(0, MERGE_WIDTH).clear();
+                Path merged = Files.createTempFile("cli-sort", ".run");
+                runs.add(merged);
+                try (BufferedWriter writer = Files.newBufferedWriter(merged, StandardCharsets.UTF_8)) {
+                    merge(group, line -> {
+                        writer.write(line.text);
+                        writer.newLine();
+                    });
+                }
+                for (Path run : group) {
+                    Files.deleteIfExists(run);
+                }
+            }
+            Line[] last = new Line[1];
+            merge(runs, line -> {
+                if (!unique || last[0] == null || keys.compare(last[0], line) != 0) {
+                    out.println(line.text);
+                    last[0] = line;
+                }
+            });
+        } finally {
+            spiller.shutdownNow();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private interface LineSink {
+        void accept(Line line) throws IOException;
+    }
+
+    // Sorts a batch on the spill thread and writes it as a run
+    private Future<?> spill(List<Line> batch) throws IOException {
+        Path run = Files.createTempFile("cli-sort", ".run");
+        runs.add(run);
+        return spiller.submit(() -> {
+            Line[] lines = batch.toArray(new Line[0]);
+            batch.clear();
+            Arrays.parallelSort(lines, order);
+            try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+                Line previous = null;
+                for (Line line : lines) {
+                    // Duplicates under -u never need to reach the disk
+                    if (!unique || previous == null || keys.compare(previous, line) != 0) {
+                        writer.write(line.text);
+                        writer.newLine();
+                        previous = line;
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private static void await(Future<?> spilling) throws IOException {
+        if (spilling == null) {
+            return;
+        }
+        try {
+            spilling.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("sort interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // A run being merged and its current line
+    private static final class Cursor {
+        final BufferedReader reader;
+        Line line;
+
+        Cursor(BufferedReader reader) {
+            this.reader = reader;
+        }
+    }
+
+    // K-way merge: the heap always holds the current line of every run
+    private void merge(List<Path> sources, LineSink sink) throws IOException {
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, sources.size()),
+                    (a, b) -> order.compare(a.line, b.line));
+            for (Path source : sources) {
+                Cursor cursor = new Cursor(Files.newBufferedReader(source, StandardCharsets.UTF_8));
+                cursors.add(cursor);
+                if (advance(cursor)) {
+                    heap.add(cursor);
+                }
+            }
+            while (!heap.isEmpty()) {
+                Cursor top = heap.poll();
+                sink.accept(top.line);
+                if (advance(top)) {
+                    heap.add(top);
+                }
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.reader.close();
+            }
+        }
+    }
+
+    private boolean advance(Cursor cursor) throws IOException {
+        String text = cursor.reader.readLine();
+        cursor.line = text == null ? null : line(text);
+        return text != null;
+    }
+
+    private void write(Iterator<Line> lines, OutputSink out) throws IOException {
+        Line previous = null;
+        while (lines.hasNext()) {
+            Line line = lines.next();
+            if (!unique || previous == null || keys.compare(previous, line) != 0) {
+                out.println(line.text);
+                previous = line;
+            }
+        }
+    }
+
+    private Line line(String text) {
+        String key = keyFrom > 0 ? field(text) : text;
+        return new Line(text, numeric ? number(key) : key);
+    }
+
+    // Fields keyFrom to keyTo of a line. Without a separator fields are runs
+    // of non-blanks and the blanks before a field are not part of it
+    private String field(String text) {
+        int length = text.length();
+        int start = -1;
+        int position = 0;
+        for (int field = 1; ; field++) {
+            if (separator == 0) {
+                while (position < length && (text.charAt(position) == ' ' || text.charAt(position) == '\t')) {
+                    position++;
+                }
+            }
+            if (field == keyFrom) {
+                start = position;
+            }
+            if (separator == 0) {
+                while (position < length && text.charAt(position) != ' ' && text.charAt(position) != '\t') {
+                    position++;
+                }
+            } else {
+                int next = text.indexOf(separator, position);
+                position = next < 0 ? length : next;
+            }
+            if (field == keyTo) {
+                return start < 0 || start > position ? "" : text.substring(start, position);
+            }
+            if (position >= length) {
+                return start < 0 || start > length ? "" : text.substring(start);
+            }
+            if (separator != 0) {
+                position++;
+            }
+        }
+    }
+
+    // The number a key starts with, as sign, integer digits without leading
+    // zeros, a dot and fraction digits without trailing zeros, like "+12.5".
+    // Keys without a number count as zero
+    static String number(String key) {
+        int i = 0, length = key.length();
+        while (i < length && (key.charAt(i) == ' ' || key.charAt(i) == '\t')) {
+            i++;
+        }
+        boolean negative = i < length && key.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        while (i < length && key.charAt(i) == '0') {
+            i++;
+        }
+        int integerStart = i;
+        while (i < length && Character.isDigit(key.charAt(i))) {
+            i++;
+        }
+        int integerEnd = i;
+        int fractionStart = i, fractionEnd = i;
+        if (i < length && key.charAt(i) == '.') {
+            fractionStart = ++i;
+            while (i < length && Character.isDigit(key.charAt(i))) {
+                i++;
+            }
+            fractionEnd = i;
+            while (fractionEnd > fractionStart && key.charAt(fractionEnd - 1) == '0') {
+                fractionEnd--;
+            }
+        }
+        boolean zero = integerStart == integerEnd && fractionStart == fractionEnd;
+        return (negative && !zero ? "-" : "+") + key.substring(integerStart, integerEnd)
+                + "." + key.substring(fractionStart, fractionEnd);
+    }
+
+    // Compares two keys made by number()
+    static int compareNumbers(String a, String b) {
+        boolean negative = a.charAt(0) == '-';
+        if (negative != (b.charAt(0) == '-')) {
+            return negative ? -1 : 1;
+        }
+        int aDot = a.indexOf('.'), bDot = b.indexOf('.');
+        // More integer digits is a bigger number, then digit by digit
+        int result = aDot - bDot;
+        for (int i = 1; result == 0 && i < aDot; i++) {
+            result = a.charAt(i) - b.charAt(i);
+        }
+        // A fraction digit one side lacks counts as zero
+        for (int i = 1; result == 0 && (aDot + i < a.length() || bDot + i < b.length()); i++) {
+            char x = aDot + i < a.length() ? a.charAt(aDot + i) : '0';
+            char y = bDot + i < b.length() ? b.charAt(bDot + i) : '0';
+            result = x - y;
+        }
+        return negative ? -result : result;
+    }
+}
+
+// Class responsible for the file side of tail: finding where the last lines
+// begin by reading fixed blocks backwards from the end, so the cost depends
+// on the lines asked for and not on the file size, and following a file as
+// it grows, gets truncated or is replaced by log rotation
+class TailReader {
+    static final int BLOCK_SIZE = 64 * 1024;
+    // tail -f also looks at the file after this long without a change event,
+    // for file systems that do not report changes
+    static final long CHECK_MILLIS = 1000;
+
+    // Offset of the first of the last lines of a file
+    static long lastLines(FileChannel channel, long lines) throws IOException {
+        long size = channel.size();
+        if (lines == 0) {
+            return size;
+        }
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long newlines = 0;
+        long end = size;
+        while (end > 0) {
+            long start = Math.max(0, end - BLOCK_SIZE);
+            block.clear().limit((int) (end - start));
+            while (block.hasRemaining()) {
+                if (channel.read(block, start + block.position()) == -1) {
+                    break;
+                }
+            }
+            for (int i = block.position() - 1; i >= 0; i--) {
+                // The newline ending the file does not start another line
+                if (block.get(i) == '\n' && start + i != size - 1 && ++newlines == lines) {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    // Writes what is appended to the file from position on, until the thread
+    // is interrupted or the output goes away. Only the new bytes are read;
+    // change events of the file's directory say when to look
+    static void follow(Path file, String name, long position, OutputSink out, PrintStream console) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path fileName = file.getFileName();
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            Object identity = identity(file);
+            try {
+                while (true) {
+                    WatchKey key = watcher.poll(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    boolean changed = key == null;
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+                        }
+                        key.reset();
+                    }
+                    if (!changed) {
+                        continue;
+                    }
+                    // Rotated: the name now belongs to another file. Finish the
+                    // old one, then start the new one from its beginning
+                    Object current = identity(file);
+                    if (current != null && !current.equals(identity)) {
+                        copy(channel, position, out);
+                        channel.close();
+                        channel = FileChannel.open(file, StandardOpenOption.READ);
+                        identity = current;
+                        position = 0;
+                        console.println("tail: '" + name + "' has been replaced; following new file");
+                    }
+                    long size = channel.size();
+                    if (size < position) {
+                        console.println("tail: " + name + ": file truncated");
+                        position = 0;
+                    }
+                    if (size > position) {
+                        position = copy(channel, position, out);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Writes the file from position to its current end, returns the new position
+    private static long copy(FileChannel channel, long position, OutputSink out) throws IOException {
+        channel.position(position);
+        out.transferFrom(channel);
+        // Followed output is wanted now, even from a batch run
+        out.flush();
+        OutputSink.drainConsole();
+        CommandStats.read(channel.position() - position, 0);
+        return channel.position();
+    }
+
+    // What tells two files apart (device and inode on Unix), null once the name is gone
+    private static Object identity(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
+
+// Class responsible for the background jobs of a session. A line ending in
+// & runs on a virtual thread as a session of its own, started in a copy of
+// the current directory, so a cd inside the job changes nothing outside it.
+// Its output is captured and shown once the job is done; kill interrupts
+// the job, which stops blocking I/O and the worker pools it waits on
+class JobTable {
+    // Output kept per job, the rest is only counted
+    static final int CAPTURE_LIMIT = 1024 * 1024;
+    // Status of a killed job, as after SIGTERM
+    static final int KILLED_STATUS = 143;
+
+    static final class Job {
+        final int id;
+        final String line;
+        final CapturedOutput output = new CapturedOutput(CAPTURE_LIMIT);
+        Thread thread;
+        volatile int status;
+        volatile boolean killed;
+
+        Job(int id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+
+        boolean finished() {
+            return !thread.isAlive();
+        }
+
+        String state() {
+            return !finished() ? "Running" : killed ? "Terminated" : status == 0 ? "Done" : "Exit " + status;
+        }
+    }
+
+    // Keeps the first bytes written to it and counts the others
+    static final class CapturedOutput extends OutputStream {
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        private final int limit;
+        private long dropped;
+
+        CapturedOutput(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            int keep = Math.max(0, Math.min(length, limit - kept.size()));
+            kept.write(bytes, offset, keep);
+            dropped += length - keep;
+        }
+    }
+
+    private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+
+    // Starts line as a job in a snapshot of directory and returns it
+    Job start(String line, File directory) {
+        synchronized (jobs) {
+            // The lowest free number, like job numbers in a shell
+            int id = 1;
+            while (jobs.containsKey(id)) {
+                id++;
+            }
+            Job job = new Job(id, line);
+            PrintStream console = new PrintStream(job.output, true, StandardCharsets.UTF_8);
+            Terminal session = new Terminal(console, directory);
+            job.thread = Thread.ofVirtual().name("job-" + id).unstarted(() -> {
+                try {
+                    job.status = session.execute(line);
+                } finally {
+                    if (job.killed) {
+                        job.status = KILLED_STATUS;
+                    }
+                    console.flush();
+                }
+            });
+            jobs.put(id, job);
+            job.thread.start();
+            return job;
+        }
+    }
+
+    // jobs: jobs that are done are reported and forgotten, the others get a line each
+    void list(Terminal terminal, OutputSink out) throws IOException {
+        reportFinished(terminal.console());
+        for (Job job : jobs.values()) {
+            out.println(String.format("[%d]  %-10s %s", job.id, job.state(), job.line));
+        }
+    }
+
+    // wait [ID...]: waits for the jobs (all of them without IDs) and reports them.
+    // The status of the last one waited for becomes the status of wait
+    void await(Terminal terminal, String[] args) {
+        List<Job> waited = new ArrayList<>();
+        if (args.length == 0) {
+            waited.addAll(jobs.values());
+        }
+        for (String arg : args) {
+            Job job = find(arg);
+            if (job == null) {
+                terminal.error("wait: " + arg + ": no such job");
+                return;
+            }
+            waited.add(job);
+        }
+        for (Job job : waited) {
+            try {
+                job.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminal.error("wait: interrupted");
+                return;
+            }
+        }
+        report(terminal.console(), waited);
+        if (!waited.isEmpty()) {
+            terminal.setStatus(waited.get(waited.size() - 1).status);
+        }
+    }
+
+    // kill ID...: asks the jobs to stop. The job ends once the command
+    // running in it notices the interrupt
+    void kill(Terminal terminal, String[] args) {
+        if (args.length == 0) {
+            terminal.error("kill: usage: kill ID...");
+            return;
+        }
+        for (String arg : args) {
+            Job job = find(arg);
+            if (job == null) {
+                terminal.error("kill: " + arg + ": no such job");
+            } else if (!job.finished()) {
+                job.killed = true;
+                job.thread.interrupt();
+            }
+        }
+    }
+
+    // Shows the output and state of jobs that are done and forgets them
+    void reportFinished(PrintStream console) {
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.finished()) {
+                finished.add(job);
+            }
+        }
+        report(console, finished);
+    }
+
+    // Waits for every job, for when the session ends
+    void finish(PrintStream console) {
+        for (Job job : jobs.values()) {
+            try {
+                job.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        reportFinished(console);
+    }
+
+    private void report(PrintStream console, List<Job> done) {
+        for (Job job : done) {
+            // Whoever removes the job reports it, so it is shown only once
+            if (jobs.remove(job.id, job)) {
+                synchronized (job.output) {
+                    console.write(job.output.kept.toByteArray(), 0, job.output.kept.size());
+                    if (job.output.dropped > 0) {
+                        console.println("[" + job.id + "]  " + job.output.dropped + " more bytes of output not kept");
+                    }
+                }
+                console.println(String.format("[%d]  %-10s %s", job.id, job.state(), job.line));
+            }
+        }
+    }
+
+    // A job by its number, written as 1 or %1
+    private Job find(String id) {
+        try {
+            return jobs.get(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Waits for a task on a pool of its own. An interrupt, which is how kill
+    // reaches a job, cancels the work and returns null with the thread still
+    // marked as interrupted
+    static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task) {
+        pool.execute(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
+
+// Class responsible for daemon mode: one warm JVM listens on a Unix domain
+// socket and runs every connection as its own Terminal session on a virtual
+// thread, so callers pay JVM startup once instead of per command.
+// Protocol, text is UTF-8:
+//   client -> server: the session's working directory on the first line,
+//                     then one command line per line
+//   server -> client: frames of a type byte, a 4-byte big-endian length and a
+//                     payload. OUTPUT carries console bytes, ERROR carries error
+//                     messages for the client's stderr, EXIT ends a command
+//                     line and carries its 4-byte exit status
+// The client ends a session by shutting down its side. The server waits for
+// the session's jobs, sends what they printed and closes the connection
+class TerminalDaemon {
+    static final byte OUTPUT = 'O';
+    static final byte ERROR = 'E';
+    static final byte EXIT = 'X';
+    static final int FRAME_SIZE = 64 * 1024;
+
+    // Accepts connections until the process is stopped
+    static void serve(Path socket) throws IOException {
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("cli: listening on " + socket);
+            while (true) {
+                SocketChannel connection = server.accept();
+                Thread.ofVirtual().name("cli-session").start(() -> session(connection));
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    // One connection: a Terminal with its own console, parser and directory
+    private static void session(SocketChannel connection) {
+        try (connection; FrameWriter frames = new FrameWriter(connection)) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8));
+            String directory = reader.readLine();
+            if (directory == null) {
+                return;
+            }
+            PrintStream console = new PrintStream(frames, false, StandardCharsets.UTF_8);
+            PrintStream errors = new PrintStream(new BufferedOutputStream(frames.errors()), true, StandardCharsets.UTF_8);
+            Terminal terminal = new Terminal(console, errors, new File(directory));
+            Lexer words = new Lexer();
+            int last = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int exit = Terminal.exitStatus(words, line, last, errors);
+                if (exit >= 0) {
+                    console.flush();
+                    errors.flush();
+                    frames.exit(exit);
+                    break;
+                }
+                int status = line.trim().isEmpty() ? 0 : terminal.execute(line);
+                last = status;
+                console.flush();
+                errors.flush();
+                frames.exit(status);
+            }
+            // Jobs of the session are waited for and their output delivered
+            // before the connection closes
+            terminal.jobs.finish(console);
+            console.flush();
+        } catch (IOException e) {
+            // The client went away, its session simply ends
+        }
+    }
+
+    // Thin client: sends the working directory and each command line, copies
+    // output frames to stdout and returns the status of the last command.
+    // Without a command it forwards the lines of stdin over one connection
+    static int client(Path socket, String command) throws IOException {
+        try (SocketChannel connection = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection), FRAME_SIZE));
+            OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), FRAME_SIZE);
+            OutputStream stderr = new FileOutputStream(FileDescriptor.err);
+            send(connection, System.getProperty("user.dir"));
+            // exit is handled here, as the server would only end the session
+            Lexer words = new Lexer();
+            int status = 0;
+            if (command != null) {
+                int exit = Terminal.exitStatus(words, command, status, System.err);
+                if (exit >= 0) {
+                    status = exit;
+                } else {
+                    send(connection, command);
+                    status = receive(in, stdout, stderr);
+                }
+            } else {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    int exit = Terminal.exitStatus(words, line, status, System.err);
+                    if (exit >= 0) {
+                        status = exit;
+                        break;
+                    }
+                    send(connection, line);
+                    status = receive(in, stdout, stderr);
+                }
+            }
+            // Ends the session, the server then waits for its jobs and sends their output
+            connection.shutdownOutput();
+            drain(in, stdout, stderr);
+            return status;
+        }
+    }
+
+    private static void send(SocketChannel connection, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            connection.write(buffer);
+        }
+    }
+
+    // Copies output and error frames until the exit frame of the current command line
+    private static int receive(DataInputStream in, OutputStream stdout, OutputStream stderr) throws IOException {
+        byte[] payload = new byte[FRAME_SIZE];
+        while (true) {
+            byte type = in.readByte();
+            int length = in.readInt();
+            if (type == EXIT) {
+                int status = in.readInt();
+                stdout.flush();
+                return status;
+            }
+            if (type == ERROR) {
+                // Output printed before the error shows up before it
+                stdout.flush();
+            }
+            OutputStream target = type == ERROR ? stderr : stdout;
+            while (length > 0) {
+                int chunk = Math.min(length, payload.length);
+                in.readFully(payload, 0, chunk);
+                target.write(payload, 0, chunk);
+                length -= chunk;
+            }
+        }
+    }
+
+    // Copies what the session still has to say until the server closes it
+    private static void drain(DataInputStream in, OutputStream stdout, OutputStream stderr) throws IOException {
+        try {
+            receive(in, stdout, stderr);
+        } catch (EOFException e) {
+            stdout.flush();
+        }
+    }
+
+    // Buffers console bytes and sends them as OUTPUT frames when full or flushed
+    private static final class FrameWriter extends OutputStream {
+        private final SocketChannel connection;
+        private final ByteBuffer frame = ByteBuffer.allocate(5 + FRAME_SIZE);
+
+        FrameWriter(SocketChannel connection) {
+            this.connection = connection;
+            frame.position(5);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (!frame.hasRemaining()) {
+                flush();
+            }
+            frame.put((byte) b);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!frame.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(length, frame.remaining());
+                frame.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            int length = frame.position() - 5;
+            if (length == 0) {
+                return;
+            }
+            frame.put(0, OUTPUT).putInt(1, length).flip();
+            writeFully(frame);
+            frame.clear().position(5);
+        }
+
+        // Stream for error messages: each write goes out at once as ERROR
+        // frames, after the output buffered so far
+        OutputStream errors() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    error(bytes, offset, length);
+                }
+            };
+        }
+
+        private synchronized void error(byte[] bytes, int offset, int length) throws IOException {
+            flush();
+            while (length > 0) {
+                int chunk = Math.min(length, FRAME_SIZE);
+                ByteBuffer frame = ByteBuffer.allocate(5 + chunk).put(ERROR).putInt(chunk).put(bytes, offset, chunk).flip();
+                writeFully(frame);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        // Ends a command line, everything it printed goes first
+        synchronized void exit(int status) throws IOException {
+            flush();
+            ByteBuffer end = ByteBuffer.allocate(9).put(EXIT).putInt(4).putInt(status).flip();
+            writeFully(end);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                connection.write(buffer);
+            }
+        }
+    }
+}
+
+
+// A built-in command. in is its piped input or null, out is where its output
+// goes. Commands keep no state of their own, one instance serves every session
+interface Command {
+    void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException;
+}
+
+// Class responsible for finding commands by name. A command is created, and
+// its class (with everything it pulls in, like the zip machinery) loaded,
+// the first time somebody runs it
+class CommandRegistry {
+    // Instances created so far, shared by daemon sessions
+    private final ConcurrentHashMap<String, Command> loaded = new ConcurrentHashMap<>();
+
+    // Command with this name, or null when there is none
+    Command lookup(String name) {
+        Command command = loaded.get(name);
+        if (command != null) {
+            return command;
+        }
+        command = create(name);
+        if (command == null) {
+            return null;
+        }
+        Command raced = loaded.putIfAbsent(name, command);
+        return raced != null ? raced : command;
+    }
+
+    // A switch rather than a map of factories: a lambda is only linked when
+    // its case runs, so unused commands cost nothing at startup
+    private static Command create(String name) {
+        switch (name) {
+            case "pwd": return (terminal, args, in, out) -> terminal.pwd(out);
+            case "cd": return (terminal, args, in, out) -> terminal.cd(args);
+            case "ls": return (terminal, args, in, out) -> terminal.ls(args, out);
+            case "mkdir": return (terminal, args, in, out) -> terminal.mkdir(args);
+            case "rmdir": return (terminal, args, in, out) -> terminal.rmdir(args);
+            case "touch": return (terminal, args, in, out) -> terminal.touch(args);
+            case "cp": return (terminal, args, in, out) -> terminal.cp(args);
+            case "rm": return (terminal, args, in, out) -> terminal.rm(args);
+            case "cat": return (terminal, args, in, out) -> terminal.cat(args, in, out);
+            case "wc": return (terminal, args, in, out) -> terminal.wc(args, in, out);
+            case "zip": return new ZipCommand();
+            case "unzip": return new UnzipCommand();
+            case "grep": return new GrepCommand();
+            case "find": return new FindCommand();
+            case "du": return new DuCommand();
+            case "sort": return new SortCommand();
+            case "uniq": return new UniqCommand();
+            case "head": return new HeadCommand();
+            case "tail": return new TailCommand();
+            case "jobs": return (terminal, args, in, out) -> terminal.jobs.list(terminal, out);
+            case "wait": return (terminal, args, in, out) -> terminal.jobs.await(terminal, args);
+            case "kill": return (terminal, args, in, out) -> terminal.jobs.kill(terminal, args);
+            case "stats": return new StatsCommand();
+            default: return null;
+        }
+    }
+}
+
+// (12) zip command. Entries are deflated on a worker pool and written in order
+class ZipCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) {
+        // Options come first: -r (recurse into directories), -u (update an
+        // existing archive), -0 to -9 (compression level) and -j N (compression workers)
+        boolean recursive = false;
+        boolean update = false;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int start = 0;
+        while (start < args.length && args[start].startsWith("-")) {
+            if ("-r".equals(args[start])) {
+                recursive = true;
+            } else if ("-u".equals(args[start])) {
+                update = true;
+            } else if (args[start].length() == 2 && Character.isDigit(args[start].charAt(1))) {
+                level = args[start].charAt(1) - '0';
+            } else if ("-j".equals(args[start])) {
+                try {
+                    workers = Integer.parseInt(args[++start]);
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    terminal.error("zip: -j needs a positive number of workers");
+                    return;
+                }
+            } else {
+                terminal.error("zip: unknown option " + args[start]);
+                return;
+            }
+            start++;
+        }
+        if (args.length - start < 2) {
+            terminal.error("zip: missing operands");
+            return;
+        }
+
+        // Name of the zip file
+        String zipName = args[start];
+        Path archive = terminal.resolvePath(zipName);
+        // An update writes a new archive next to the old one and swaps it in at the end
+        boolean updating = update && Files.isRegularFile(archive);
+        Path target = archive;
+        try {
+            if (updating) {
+                target = Files.createTempFile(archive.getParent(), archive.getFileName().toString(), ".tmp");
+            }
+        } catch (IOException e) {
+            terminal.error("zip: error creating archive → " + e.getMessage());
+            return;
+        }
+        // Collect the files to be zipped, in archive order
+        List<ParallelZipper.Source> sources = new ArrayList<>();
+        for (int i = start + 1; i < args.length; i++) {
+            File f = terminal.resolvePath(args[i]).toFile();
+            if (!f.exists()) {
+                terminal.error("file not found " + args[i]);
+                continue;
+            }
+            // Handle directories and files
+            if (f.isDirectory()) {
+                if (recursive) {
+                    collectZipSources(terminal, f, f.getName(), archive, target, sources);
+                } else {
+                    terminal.error("zip: " + args[i] + " is a directory ");
+                }
+            } else if (isArchive(f.toPath(), archive)) {
+                terminal.console().println("zip: skipping " + args[i] + ": it is the archive being written");
+            } else {
+                sources.add(new ParallelZipper.Source(f.toPath(), f.getName()));
+            }
+        }
+
+        if (sources.isEmpty()) {
+            terminal.error("no valid files found to zip, archive not created.");
+            if (updating) {
+                target.toFile().delete();
+            }
+            return;
+        }
+
+        int copied = 0;
+        int compressed = 0;
+        // Compress on the worker pool and write the archive in order
+        try (ZipArchiveReader previous = updating ? new ZipArchiveReader(archive) : null;
+             FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ZipWriter writer = new ZipWriter(channel);
+            ParallelZipper zipper = new ParallelZipper(writer, workers, level);
+            try {
+                Set<String> named = new HashSet<>();
+                for (ParallelZipper.Source source : sources) {
+                    named.add(source.name);
+                    ZipArchiveReader.Entry old = previous == null ? null : previous.entry(source.name);
+                    if (old != null && ParallelZipper.isUnchanged(old, source.file)) {
+                        // Same content: reuse the compressed bytes with the file's current timestamp
+                        int dosTime = ZipWriter.dosTime(Files.getLastModifiedTime(source.file).toMillis());
+                        zipper.addRaw(previous, old, dosTime);
+                        copied++;
+                    } else {
+                        zipper.add(source);
+                        compressed++;
+                    }
+                }
+                // Entries of the old archive that were not named this time are kept as they are
+                if (previous != null) {
+                    for (ZipArchiveReader.Entry old : previous.entries()) {
+                        if (!named.contains(old.name)) {
+                            zipper.addRaw(previous, old, old.dosTime);
+                            copied++;
+                        }
+                    }
+                }
+                zipper.finish();
+            } finally {
+                zipper.shutdown();
+            }
+            writer.finish();
+            zipper.report().forEach(terminal.console()::println);
+            CommandStats.read(zipper.bytesIn(), sources.size());
+            CommandStats.wrote(channel.size(), 1);
+        } catch (IOException e) {
+            terminal.error("zip: error creating archive → " + e.getMessage());
+            // Don't leave a half written archive behind
+            target.toFile().delete();
+            return;
+        }
+
+        if (updating) {
+            try {
+                Files.move(target, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                terminal.error("zip: cannot replace '" + zipName + "': " + e.getMessage());
+                target.toFile().delete();
+                return;
+            }
+        }
+        if (update) {
+            terminal.console().println("zip: " + copied + " entries copied unchanged, " + compressed + " compressed");
+        }
+    }
+    // Helper method to list the files of a directory recursively. The archive
+    // itself is left out when it lies inside the tree, and so is target, the
+    // temporary file this run writes when it updates the archive
+    private void collectZipSources(Terminal terminal, File dir, String baseName, Path archive, Path target,
+                                   List<ParallelZipper.Source> sources) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        // Sorted so the same tree always gives the same archive
+        Arrays.sort(files);
+
+        for (File f : files) {
+            String entryName = baseName + "/" + f.getName();
+            if (f.isDirectory()) {
+                collectZipSources(terminal, f, entryName, archive, target, sources);
+            } else if (isArchive(f.toPath(), archive) || f.toPath().equals(target)) {
+                continue;
+            } else if (f.isFile()) {
+                sources.add(new ParallelZipper.Source(f.toPath(), entryName));
+            } else {
+                // Broken links, sockets and the like have no content to store
+                terminal.console().println("zip: skipping " + f.getPath() + ": not a regular file");
+            }
+        }
+    }
+
+    private static boolean isArchive(Path file, Path archive) {
+        try {
+            return file.equals(archive) || (Files.exists(archive) && Files.isSameFile(file, archive));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
+
+// (13) unzip command. Entries are read straight out of the archive with ZipFile
+class UnzipCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // Options: -l (list), -p (write entries to the output), -d DIR (destination), -j N (workers)
+        boolean list = false, pipe = false;
+        String destinationName = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-l".equals(args[i])) {
+                list = true;
+            } else if ("-p".equals(args[i])) {
+                pipe = true;
+            } else if ("-d".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    terminal.error("missing destination");
+                    return;
+                }
+                destinationName = args[++i];
+            } else if ("-j".equals(args[i])) {
+                try {
+                    workers = Integer.parseInt(args[++i]);
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    terminal.error("unzip: -j needs a positive number of workers");
+                    return;
+                }
+            } else {
+                operands.add(args[i]);
+            }
+        }
+        if (operands.isEmpty()) {
+            terminal.error("unzip: missing operand");
+            return;
+        }
+
+        File zf = terminal.resolvePath(operands.get(0)).toFile();
+        if (!zf.exists() || !zf.isFile()) {
+            terminal.error("unzip: archive not found  " + zf.getAbsolutePath());
+            return;
+        }
+        // Any further operands select entries by name
+        Set<String> selected = new HashSet<>(operands.subList(1, operands.size()));
+
+        // ZipFile only reads the central directory up front and can
+        // open any entry directly, from several threads at once
+        try (ZipFile archive = new ZipFile(zf)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            boolean all = selected.isEmpty();
+            for (ZipEntry entry : Collections.list(archive.entries())) {
+                if (all || selected.remove(entry.getName())) {
+                    entries.add(entry);
+                }
+            }
+            for (String missing : selected) {
+                terminal.error("unzip: entry not found in archive: " + missing);
+            }
+
+            if (list) {
+                listZipEntries(entries, out);
+            } else if (pipe) {
+                // Stream the selected file entries, in archive order
+                for (ZipEntry entry : entries) {
+                    if (!entry.isDirectory()) {
+                        try (InputStream data = archive.getInputStream(entry)) {
+                            out.copyFrom(data);
+                        }
+                        CommandStats.read(entry.getCompressedSize(), 1);
+                    }
+                }
+            } else {
+                // Default destination is current directory
+                Path destination = destinationName == null ? terminal.currentPath() : terminal.resolvePath(destinationName);
+                extractZipEntries(terminal, archive, entries, destination, workers);
+                if (entries.isEmpty()) {
+                    terminal.error("unzip: no entries found in archive → " + zf.getName());
+                }
+            }
+        } catch (ZipException e) {
+            terminal.error("unzip: error reading archive → " + e.getMessage());
+        }
+    }
+    // Helper method to print the entries of an archive without extracting anything
+    private void listZipEntries(List<ZipEntry> entries, OutputSink out) throws IOException {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        out.println("  Length      Date    Time    Name");
+        out.println("---------  ---------- -----   ----");
+        long total = 0;
+        for (ZipEntry entry : entries) {
+            long size = Math.max(entry.getSize(), 0);
+            total += size;
+            out.println(String.format("%9d  %s   %s", size, entry.getTimeLocal().format(format), entry.getName()));
+        }
+        out.println("---------                     -------");
+        out.println(String.format("%9d                     %d file%s", total, entries.size(), entries.size() == 1 ? "" : "s"));
+    }
+    // Helper method to extract entries in parallel. Directories are created
+    // first, then the files are inflated on a pool of workers
+    private void extractZipEntries(Terminal terminal, ZipFile archive, List<ZipEntry> entries, Path destination, int workers) throws IOException {
+        Path root = destination.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+
+        Set<Path> directories = new TreeSet<>();
+        Map<ZipEntry, Path> files = new LinkedHashMap<>();
+        for (ZipEntry entry : entries) {
+            Path target = root.resolve(entry.getName()).normalize();
+            // Refuse names like ../../x or /etc/x that would land outside the destination
+            if (!target.startsWith(root) || target.equals(root)) {
+                terminal.error("unzip: skipping '" + entry.getName() + "': outside of destination");
+                continue;
+            }
+            if (entry.isDirectory()) {
+                directories.add(target);
+            } else {
+                directories.add(target.getParent());
+                files.put(entry, target);
+            }
+        }
+        for (Path directory : directories) {
+            Files.createDirectories(directory);
+        }
+
+        Queue<String> errors = new ConcurrentLinkedQueue<>();
+        LongAdder extracted = new LongAdder();
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.submit(() -> files.entrySet().parallelStream().forEach(file -> {
+                try (InputStream in = archive.getInputStream(file.getKey())) {
+                    Files.copy(in, file.getValue(), StandardCopyOption.REPLACE_EXISTING);
+                    Files.setLastModifiedTime(file.getValue(), file.getKey().getLastModifiedTime());
+                    extracted.add(file.getKey().getSize());
+                } catch (IOException e) {
+                    errors.add("unzip: error extracting '" + file.getKey().getName() + "' → " + e.getMessage());
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("unzip interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        errors.forEach(terminal::error);
+        long compressed = 0;
+        for (ZipEntry entry : files.keySet()) {
+            compressed += Math.max(entry.getCompressedSize(), 0);
+        }
+        CommandStats.read(compressed, 1);
+        CommandStats.wrote(extracted.sum(), files.size());
+    }
+}
+
+// (14) grep command. Files, and chunks of big files, are searched on a pool
+// of workers; results are written in file order as soon as they are ready
+class GrepCommand implements Command {
+    // A file being searched and what was found in it so far
+    private static final class Target {
+        final String name;
+        final FileChannel channel;
+        final long size;
+        // Set once -l has its answer, later chunks are skipped
+        final AtomicBoolean found = new AtomicBoolean();
+        long lineBase;
+        long count;
+        boolean binary;
+        boolean reported;
+        boolean failed;
+
+        Target(String name, FileChannel channel, long size) {
+            this.name = name;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    // One chunk handed to the pool, in output order
+    private static final class Unit {
+        final Target target;
+        final boolean first;
+        final boolean last;
+        final Future<LineSearcher.Matches> matches;
+
+        Unit(Target target, boolean first, boolean last, Future<LineSearcher.Matches> matches) {
+            this.target = target;
+            this.first = first;
+            this.last = last;
+            this.matches = matches;
+        }
+    }
+
+    // Options of one run, together with the pool and the chunks in flight
+    private static final class Search {
+        final Terminal terminal;
+        final OutputSink out;
+        final LineSearcher searcher;
+        final boolean lineNumbers, countOnly, listOnly, showNames;
+        final ExecutorService pool;
+        final int maxInFlight;
+        final ArrayDeque<Unit> inFlight = new ArrayDeque<>();
+        boolean matched;
+
+        Search(Terminal terminal, OutputSink out, LineSearcher searcher, boolean lineNumbers,
+               boolean countOnly, boolean listOnly, boolean showNames, int workers) {
+            this.terminal = terminal;
+            this.out = out;
+            this.searcher = searcher;
+            this.lineNumbers = lineNumbers;
+            this.countOnly = countOnly;
+            this.listOnly = listOnly;
+            this.showNames = showNames;
+            // A couple of chunks per worker keeps them busy while bounding memory
+            this.maxInFlight = workers * 2;
+            this.pool = Executors.newFixedThreadPool(workers, task -> {
+                Thread thread = new Thread(task, "grep-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // Queues every chunk of a file
+        void add(Path file, String name) throws IOException {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            } catch (IOException e) {
+                terminal.error("grep: " + name + ": " + GrepCommand.reason(e));
+                return;
+            }
+            Target target = new Target(name, channel, channel.size());
+            List<long[]> chunks = LineSearcher.chunks(channel, target.size);
+            if (chunks.isEmpty()) {
+                chunks.add(new long[] {0, 0});
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                if (inFlight.size() >= maxInFlight) {
+                    writeNext();
+                }
+                long start = chunks.get(i)[0], end = chunks.get(i)[1];
+                Future<LineSearcher.Matches> matches = pool.submit(() -> {
+                    if (listOnly && target.found.get()) {
+                        return new LineSearcher.Matches();
+                    }
+                    LineSearcher.Matches found = searcher.search(channel, start, end);
+                    if (found.count > 0) {
+                        target.found.set(true);
+                    }
+                    return found;
+                });
+                inFlight.add(new Unit(target, i == 0, i == chunks.size() - 1, matches));
+            }
+        }
+
+        void finish() throws IOException {
+            while (!inFlight.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        // Waits for the oldest chunk and writes what it found
+        private void writeNext() throws IOException {
+            Unit unit = inFlight.poll();
+            Target target = unit.target;
+            try {
+                LineSearcher.Matches matches = get(unit.matches);
+                if (!target.failed) {
+                    write(target, unit.first, matches);
+                }
+            } catch (IOException e) {
+                if (!target.failed) {
+                    target.failed = true;
+                    terminal.error("grep: " + target.name + ": " + GrepCommand.reason(e));
+                }
+            }
+            if (unit.last) {
+                target.channel.close();
+                if (countOnly && !listOnly && !target.failed) {
+                    out.println((showNames ? target.name + ":" : "") + target.count);
+                }
+                matched |= target.count > 0;
+                CommandStats.read(target.size, 1);
+            }
+        }
+
+        private void write(Target target, boolean first, LineSearcher.Matches matches) throws IOException {
+            if (first) {
+                target.binary = matches.binary;
+            }
+            target.count += matches.count;
+            long base = target.lineBase;
+            target.lineBase += matches.lines;
+            if (matches.count == 0 || countOnly && !listOnly) {
+                return;
+            }
+            if (listOnly || target.binary) {
+                if (!target.reported) {
+                    out.println(listOnly ? target.name : "Binary file " + target.name + " matches");
+                    target.reported = true;
+                }
+                return;
+            }
+            byte[] text = matches.text.toByteArray();
+            int start = 0;
+            for (int i = 0; i < matches.count; i++) {
+                if (showNames) {
+                    out.print(target.name + ":");
+                }
+                if (lineNumbers) {
+                    out.print((base + matches.lineNumbers[i] + 1) + ":");
+                }
+                out.write(text, start, matches.ends[i] - start);
+                out.print("\n");
+                start = matches.ends[i];
+            }
+        }
+
+        private static LineSearcher.Matches get(Future<LineSearcher.Matches> matches) throws IOException {
+            try {
+                return matches.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("grep interrupted");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // Options: -r (recurse), -c (count), -n (line numbers), -l (file names),
+        // -i (ignore case), -F (fixed string), -E (accepted, patterns are regular
+        // expressions anyway), -e PATTERN and -j N (workers)
+        boolean recursive = false, countOnly = false, lineNumbers = false, listOnly = false;
+        boolean ignoreCase = false, fixed = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        String pattern = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-e") || arg.equals("-j")) {
+                if (i + 1 >= args.length) {
+                    terminal.error("grep: option requires an argument -- '" + arg.charAt(1) + "'");
+                    return;
+                }
+                if (arg.equals("-e")) {
+                    pattern = args[++i];
+                    continue;
+                }
+                try {
+                    workers = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    terminal.error("grep: -j needs a positive number of workers");
+                    return;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 'r': case 'R': recursive = true; break;
+                        case 'c': countOnly = true; break;
+                        case 'n': lineNumbers = true; break;
+                        case 'l': listOnly = true; break;
+                        case 'i': ignoreCase = true; break;
+                        case 'F': fixed = true; break;
+                        case 'E': break;
+                        default:
+                            terminal.error("grep: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else if (pattern == null) {
+                pattern = arg;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (pattern == null) {
+            terminal.error("grep: usage: grep [-rcnliFE] [-j N] PATTERN [FILE...]");
+            return;
+        }
+
+        LineSearcher searcher;
+        try {
+            searcher = new LineSearcher(pattern, fixed, ignoreCase, lineNumbers,
+                    !countOnly && !listOnly, listOnly && !countOnly);
+        } catch (PatternSyntaxException e) {
+            terminal.error("grep: invalid pattern: " + e.getDescription());
+            return;
+        }
+
+        if (files.isEmpty() && !recursive) {
+            // Without files grep searches its piped input
+            if (in == null) {
+                terminal.error("grep: missing file operand");
+                return;
+            }
+            long count = searchStream(searcher, in, out, lineNumbers, countOnly || listOnly);
+            if (countOnly) {
+                out.println(Long.toString(count));
+            } else if (listOnly && count > 0) {
+                out.println("(standard input)");
+            }
+            if (count == 0) {
+                terminal.setStatus(1);
+            }
+            return;
+        }
+
+        // -r without operands searches the current directory, named relative to it
+        boolean implicitDirectory = files.isEmpty();
+        if (implicitDirectory) {
+            files.add(".");
+        }
+        Search search = new Search(terminal, out, searcher, lineNumbers, countOnly, listOnly,
+                recursive || files.size() > 1, workers);
+        try {
+            for (String name : files) {
+                Path path = terminal.resolvePath(name);
+                if (!Files.exists(path)) {
+                    terminal.error("grep: " + name + ": No such file or directory");
+                } else if (Files.isDirectory(path)) {
+                    if (recursive) {
+                        searchTree(search, path, implicitDirectory ? "" : name);
+                    } else {
+                        terminal.error("grep: " + name + ": Is a directory");
+                    }
+                } else {
+                    search.add(path, name);
+                }
+            }
+            search.finish();
+        } finally {
+            search.pool.shutdownNow();
+            // Whatever is still queued after a failure
+            for (Unit unit : search.inFlight) {
+                unit.target.channel.close();
+            }
+        }
+        if (!search.matched) {
+            terminal.setStatus(1);
+        }
+    }
+
+    // Queues the regular files below root as they are found, so output
+    // starts before the walk is done. Links are not followed
+    private static void searchTree(Search search, Path root, String rootName) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile()) {
+                    String relative = root.relativize(file).toString();
+                    search.add(file, rootName.isEmpty() ? relative
+                            : rootName.endsWith("/") ? rootName + relative : rootName + "/" + relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                search.terminal.error("grep: " + file + ": " + reason(e));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Searches piped input a block of whole lines at a time, returns the number of matches
+    private static long searchStream(LineSearcher searcher, InputStream in, OutputSink out,
+                                     boolean lineNumbers, boolean quiet) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        int filled = 0;
+        long lineBase = 0;
+        long count = 0;
+        while (true) {
+            int read = in.read(block, filled, block.length - filled);
+            boolean end = read == -1;
+            if (!end) {
+                filled += read;
+            }
+            // Search up to the last newline, or everything at the end of input
+            int limit = filled;
+            if (!end) {
+                while (limit > 0 && block[limit - 1] != '\n') {
+                    limit--;
+                }
+                if (limit == 0) {
+                    if (filled == block.length) {
+                        // One line longer than the block, make room for it
+                        block = Arrays.copyOf(block, block.length * 2);
+                    }
+                    continue;
+                }
+            }
+            LineSearcher.Matches matches = new LineSearcher.Matches();
+            searcher.search(ByteBuffer.wrap(block, 0, limit), matches);
+            count += matches.count;
+            if (!quiet) {
+                byte[] text = matches.text.toByteArray();
+                int start = 0;
+                for (int i = 0; i < matches.count; i++) {
+                    if (lineNumbers) {
+                        out.print((lineBase + matches.lineNumbers[i] + 1) + ":");
+                    }
+                    out.write(text, start, matches.ends[i] - start);
+                    out.print("\n");
+                    start = matches.ends[i];
+                }
+            }
+            lineBase += matches.lines;
+            System.arraycopy(block, limit, block, 0, filled - limit);
+            filled -= limit;
+            if (end) {
+                return count;
+            }
+        }
+    }
+
+    private static String reason(IOException e) {
+        return e instanceof AccessDeniedException ? "Permission denied"
+                : e instanceof NoSuchFileException ? "No such file or directory" : e.getMessage();
+    }
+}
+
+// (15) find command. Predicates are checked against the attributes the walker
+// already read, so matching costs no extra system calls
+class FindCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // find [PATH...] [-name GLOB] [-iname GLOB] [-type f|d|l] [-size [+-]N[ckMG]]
+        // [-mtime [+-]N] [-maxdepth N] [-j N]. All predicates have to hold
+        List<String> roots = new ArrayList<>();
+        List<BiPredicate<String, BasicFileAttributes>> tests = new ArrayList<>();
+        int maxDepth = Integer.MAX_VALUE;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long now = System.currentTimeMillis();
+        int i = 0;
+        while (i < args.length && !args[i].startsWith("-")) {
+            roots.add(args[i++]);
+        }
+        for (; i < args.length; i += 2) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                terminal.error("find: missing argument to '" + option + "'");
+                return;
+            }
+            String value = args[i + 1];
+            switch (option) {
+                case "-name":
+                case "-iname": {
+                    boolean fold = option.equals("-iname");
+                    PathMatcher matcher = FileSystems.getDefault()
+                            .getPathMatcher("glob:" + (fold ? value.toLowerCase(Locale.ROOT) : value));
+                    tests.add((name, attributes) -> {
+                        String base = baseName(name);
+                        return matcher.matches(Paths.get(fold ? base.toLowerCase(Locale.ROOT) : base));
+                    });
+                    break;
+                }
+                case "-type":
+                    if (value.equals("f")) {
+                        tests.add((name, attributes) -> attributes.isRegularFile());
+                    } else if (value.equals("d")) {
+                        tests.add((name, attributes) -> attributes.isDirectory());
+                    } else if (value.equals("l")) {
+                        tests.add((name, attributes) -> attributes.isSymbolicLink());
+                    } else {
+                        terminal.error("find: unknown argument to -type: " + value);
+                        return;
+                    }
+                    break;
+                case "-size": {
+                    // Sizes are rounded up to the unit, which is 512 byte blocks by default
+                    char suffix = value.isEmpty() ? ' ' : value.charAt(value.length() - 1);
+                    long unit = suffix == 'c' ? 1 : suffix == 'k' ? 1024 : suffix == 'M' ? 1024 * 1024
+                            : suffix == 'G' ? 1024L * 1024 * 1024 : 512;
+                    String number = Character.isDigit(suffix) ? value : value.substring(0, value.length() - 1);
+                    LongPredicate size = comparison(number);
+                    if (size == null) {
+                        terminal.error("find: invalid argument '" + value + "' to -size");
+                        return;
+                    }
+                    tests.add((name, attributes) -> size.test((attributes.size() + unit - 1) / unit));
+                    break;
+                }
+                case "-mtime": {
+                    // Age in whole days, counted back from when find started
+                    LongPredicate days = comparison(value);
+                    if (days == null) {
+                        terminal.error("find: invalid argument '" + value + "' to -mtime");
+                        return;
+                    }
+                    tests.add((name, attributes) -> days.test(
+                            Math.floorDiv(now - attributes.lastModifiedTime().toMillis(), 24L * 60 * 60 * 1000)));
+                    break;
+                }
+                case "-maxdepth":
+                case "-j": {
+                    int number;
+                    try {
+                        number = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        number = -1;
+                    }
+                    if (option.equals("-j") ? number < 1 : number < 0) {
+                        terminal.error(option.equals("-j") ? "find: -j needs a positive number of workers"
+                                : "find: invalid argument '" + value + "' to -maxdepth");
+                        return;
+                    }
+                    if (option.equals("-j")) {
+                        workers = number;
+                    } else {
+                        maxDepth = number;
+                    }
+                    break;
+                }
+                default:
+                    terminal.error("find: unknown predicate '" + option + "'");
+                    return;
+            }
+        }
+        if (roots.isEmpty()) {
+            roots.add(".");
+        }
+
+        TreeWalker walker = new TreeWalker(workers, maxDepth, (name, attributes, depth) -> {
+            for (BiPredicate<String, BasicFileAttributes> test : tests) {
+                if (!test.test(name, attributes)) {
+                    return null;
+                }
+            }
+            return name;
+        });
+        for (String root : roots) {
+            walker.walk(terminal.resolvePath(root), root, out);
+        }
+        // Errors are reported together once all workers are done
+        for (String error : walker.errors) {
+            terminal.error("find: " + error);
+        }
+        CommandStats.read(0, walker.entries.sum());
+    }
+
+    // "+N" is more than N, "-N" less than N and "N" exactly N
+    private static LongPredicate comparison(String value) {
+        try {
+            if (value.startsWith("+")) {
+                long limit = Long.parseLong(value.substring(1));
+                return number -> number > limit;
+            } else if (value.startsWith("-")) {
+                long limit = Long.parseLong(value.substring(1));
+                return number -> number < limit;
+            }
+            long limit = Long.parseLong(value);
+            return number -> number == limit;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Last part of a shown name, the root itself included
+    private static String baseName(String name) {
+        int end = name.length();
+        while (end > 1 && name.charAt(end - 1) == '/') {
+            end--;
+        }
+        return name.substring(name.lastIndexOf('/', end - 1) + 1, end);
+    }
+}
+
+// (16) du command. Directory totals are summed by the walker on the way back up
+class DuCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // Options: -s (only a total per operand), -a (files too), -h (human
+        // readable sizes) and -j N (workers). Sizes are apparent sizes, in KiB
+        // unless -h is given
+        boolean summarize = false, all = false, human = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> roots = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-j")) {
+                try {
+                    workers = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    terminal.error("du: -j needs a positive number of workers");
+                    return;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 's': summarize = true; break;
+                        case 'a': all = true; break;
+                        case 'h': human = true; break;
+                        default:
+                            terminal.error("du: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else {
+                roots.add(arg);
+            }
+        }
+        if (roots.isEmpty()) {
+            roots.add(".");
+        }
+
+        boolean onlyTotal = summarize, files = all && !summarize, readable = human;
+        TreeWalker walker = new TreeWalker(workers, Integer.MAX_VALUE, new TreeWalker.Visitor() {
+            @Override
+            public String visit(String name, BasicFileAttributes attributes, int depth) {
+                // A file operand is always shown, like du does
+                return !attributes.isDirectory() && (files || depth == 0)
+                        ? format(attributes.size(), readable) + "\t" + name : null;
+            }
+
+            @Override
+            public String leave(String name, long bytes, int depth) {
+                return onlyTotal && depth > 0 ? null : format(bytes, readable) + "\t" + name;
+            }
+        });
+        for (String root : roots) {
+            walker.walk(terminal.resolvePath(root), root, out);
+        }
+        for (String error : walker.errors) {
+            terminal.error("du: cannot access " + error);
+        }
+        CommandStats.read(0, walker.entries.sum());
+    }
+
+    // KiB rounded up, or with -h the largest fitting unit: one decimal below 10, like du -h
+    static String format(long bytes, boolean human) {
+        if (!human) {
+            return Long.toString((bytes + 1023) / 1024);
+        }
+        if (bytes < 1024) {
+            return Long.toString(bytes);
+        }
+        String units = "KMGTPE";
+        int unit = 0;
+        double value = bytes / 1024.0;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        if (value < 10) {
+            double rounded = Math.ceil(value * 10) / 10;
+            if (rounded < 10) {
+                return String.format(Locale.ROOT, "%.1f%c", rounded, units.charAt(unit));
+            }
+        }
+        return String.format(Locale.ROOT, "%d%c", (long) Math.ceil(value), units.charAt(unit));
+    }
+}
+
+// (17) sort command. See ExternalSorter for how big inputs stay within the budget
+class SortCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // Options: -n (numeric), -r (reverse), -u (first of equal keys only),
+        // -k N[,M] (key fields), -t C (field separator) and -S SIZE (memory
+        // budget like 512K, 64M or 1G, default 64M or a quarter of the heap)
+        boolean numeric = false, reverse = false, unique = false;
+        int keyFrom = 0, keyTo = 0;
+        char separator = 0;
+        long budget = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-k") || arg.equals("-t") || arg.equals("-S")) {
+                if (i + 1 >= args.length) {
+                    terminal.error("sort: option requires an argument -- '" + arg.charAt(1) + "'");
+                    return;
+                }
+                String value = args[++i];
+                if (arg.equals("-k")) {
+                    try {
+                        int comma = value.indexOf(',');
+                        keyFrom = Integer.parseInt(comma < 0 ? value : value.substring(0, comma));
+                        keyTo = comma < 0 ? 0 : Integer.parseInt(value.substring(comma + 1));
+                    } catch (NumberFormatException e) {
+                        keyFrom = 0;
+                    }
+                    if (keyFrom < 1 || keyTo < 0) {
+                        terminal.error("sort: invalid -k argument '" + value + "'");
+                        return;
+                    }
+                } else if (arg.equals("-t")) {
+                    if (value.length() != 1) {
+                        terminal.error("sort: the separator must be a single character");
+                        return;
+                    }
+                    separator = value.charAt(0);
+                } else {
+                    budget = parseSize(value);
+                    if (budget <= 0) {
+                        terminal.error("sort: invalid -S argument '" + value + "'");
+                        return;
+                    }
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 'n': numeric = true; break;
+                        case 'r': reverse = true; break;
+                        case 'u': unique = true; break;
+                        default:
+                            terminal.error("sort: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+
+        List<BufferedReader> inputs = new ArrayList<>();
+        try {
+            if (files.isEmpty()) {
+                // Without files sort reads its piped input
+                if (in == null) {
+                    terminal.error("sort: missing operand");
+                    return;
+                }
+                inputs.add(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            }
+            for (String name : files) {
+                Path path = terminal.resolvePath(name);
+                if (!Files.exists(path)) {
+                    terminal.error("sort: cannot read: " + name + ": No such file or directory");
+                    return;
+                }
+                if (Files.isDirectory(path)) {
+                    terminal.error("sort: read failed: " + name + ": Is a directory");
+                    return;
+                }
+                inputs.add(new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)));
+            }
+            ExternalSorter sorter = new ExternalSorter(numeric, reverse, unique, keyFrom, keyTo, separator, budget);
+            sorter.sort(inputs, out);
+            CommandStats.read(sorter.bytesRead, files.size());
+        } finally {
+            for (BufferedReader input : inputs) {
+                input.close();
+            }
+        }
+    }
+
+    // Bytes, or a number with a K, M or G suffix; 0 when malformed
+    static long parseSize(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+        long unit = suffix == 'K' ? 1024 : suffix == 'M' ? 1024 * 1024 : suffix == 'G' ? 1024L * 1024 * 1024 : 1;
+        try {
+            return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
+
+// (18) uniq command. Only neighbouring lines are compared, so a single line is held at a time
+class UniqCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // -c puts the number of repeats in front of each line
+        boolean count = false;
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("-c")) {
+                count = true;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                terminal.error("uniq: invalid option -- '" + arg.substring(1) + "'");
+                return;
+            } else if (file == null) {
+                file = arg;
+            } else {
+                terminal.error("uniq: extra operand '" + arg + "'");
+                return;
+            }
+        }
+
+        InputStream input;
+        if (file == null) {
+            if (in == null) {
+                terminal.error("uniq: missing operand");
+                return;
+            }
+            input = in;
+        } else {
+            Path path = terminal.resolvePath(file);
+            if (!Files.isRegularFile(path)) {
+                terminal.error("uniq: " + file + (Files.isDirectory(path) ? ": Is a directory" : ": No such file or directory"));
+                return;
+            }
+            input = Files.newInputStream(path);
+        }
+        long bytes = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String previous = null;
+            long repeats = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                bytes += line.length() + 1;
+                if (line.equals(previous)) {
+                    repeats++;
+                    continue;
+                }
+                if (previous != null) {
+                    out.println(count ? String.format("%7d %s", repeats, previous) : previous);
+                }
+                previous = line;
+                repeats = 1;
+            }
+            if (previous != null) {
+                out.println(count ? String.format("%7d %s", repeats, previous) : previous);
+            }
+        }
+        CommandStats.read(bytes, file == null ? 0 : 1);
+    }
+}
+
+// (19) head command. Reading stops at the last line wanted
+class HeadCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // -n N or -N: the number of lines, 10 by default
+        List<String> files = new ArrayList<>();
+        long lines = TailCommand.parseLines(terminal, "head", args, files);
+        if (lines < 0) {
+            return;
+        }
+        if (files.isEmpty()) {
+            // Without files head reads its piped input
+            if (in == null) {
+                terminal.error("head: missing operand");
+                return;
+            }
+            copyLines(in, lines, out);
+            return;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i);
+            Path path = terminal.resolvePath(name);
+            if (!Files.isRegularFile(path)) {
+                terminal.error("head: cannot open '" + name + "' for reading: "
+                        + (Files.isDirectory(path) ? "Is a directory" : "No such file or directory"));
+                continue;
+            }
+            if (files.size() > 1) {
+                out.println((i > 0 ? "\n" : "") + "==> " + name + " <==");
+            }
+            try (InputStream input = Files.newInputStream(path)) {
+                CommandStats.read(copyLines(input, lines, out), 1);
+            }
+        }
+    }
+
+    // Writes the first lines of a stream, returns the bytes read
+    private static long copyLines(InputStream in, long lines, OutputSink out) throws IOException {
+        byte[] block = new byte[TailReader.BLOCK_SIZE];
+        long read = 0;
+        long left = lines;
+        int length;
+        while (left > 0 && (length = in.read(block)) != -1) {
+            read += length;
+            int end = 0;
+            while (end < length && left > 0) {
+                if (block[end++] == '\n') {
+                    left--;
+                }
+            }
+            out.write(block, 0, end);
+        }
+        return read;
+    }
+}
+
+// (20) tail command. Files are read backwards from the end, -f keeps following one
+class TailCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        // -n N or -N: the number of lines, 10 by default. -f: keep writing what
+        // is appended to the file, across truncation and rotation
+        boolean follow = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-f")) {
+                follow = true;
+            } else {
+                operands.add(arg);
+            }
+        }
+        List<String> files = new ArrayList<>();
+        long lines = parseLines(terminal, "tail", operands.toArray(new String[0]), files);
+        if (lines < 0) {
+            return;
+        }
+        if (files.isEmpty()) {
+            if (in == null) {
+                terminal.error("tail: missing operand");
+                return;
+            }
+            if (follow) {
+                terminal.error("tail: -f needs a file");
+                return;
+            }
+            lastLines(in, lines, out);
+            return;
+        }
+        if (follow && files.size() > 1) {
+            terminal.error("tail: -f follows a single file");
+            return;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            String name = files.get(i);
+            Path path = terminal.resolvePath(name);
+            if (!Files.isRegularFile(path)) {
+                terminal.error("tail: cannot open '" + name + "' for reading: "
+                        + (Files.isDirectory(path) ? "Is a directory" : "No such file or directory"));
+                continue;
+            }
+            if (files.size() > 1) {
+                out.println((i > 0 ? "\n" : "") + "==> " + name + " <==");
+            }
+            long end;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long start = TailReader.lastLines(channel, lines);
+                channel.position(start);
+                out.transferFrom(channel);
+                end = channel.position();
+                CommandStats.read(end - start, 1);
+            }
+            if (follow) {
+                out.flush();
+                TailReader.follow(path, name, end, out, terminal.console());
+            }
+        }
+    }
+
+    // Piped input can only be read forwards, so the last lines are kept as it goes by
+    private static void lastLines(InputStream in, long lines, OutputSink out) throws IOException {
+        ArrayDeque<String> last = new ArrayDeque<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            last.add(line);
+            if (last.size() > lines) {
+                last.poll();
+            }
+        }
+        for (String kept : last) {
+            out.println(kept);
+        }
+    }
+
+    // Reads -n N or -N into a line count and puts the other arguments in
+    // files. Returns -1 after reporting a bad option
+    static long parseLines(Terminal terminal, String command, String[] args, List<String> files) {
+        long lines = 10;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && arg.length() > 1) {
+                String value = arg.equals("-n") ? (i + 1 < args.length ? args[++i] : "") : arg.substring(1);
+                try {
+                    lines = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    lines = -1;
+                }
+                if (lines < 0) {
+                    terminal.error(command + ": invalid number of lines: '" + value + "'");
+                    return -1;
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+        return lines;
+    }
+}
+
+// Class responsible for command metrics. Every run adds its wall time, bytes
+// read and written, files touched and errors to per-command totals and a
+// latency histogram, which the stats command prints. Totals are LongAdders
+// and histogram buckets atomics, so sessions and pipeline stages never lock.
+// -Dcli.stats=false turns collection off, -Dcli.jfr=true also emits a JFR
+// event per command (recorded with -XX:StartFlightRecording)
+class CommandStats {
+    static final boolean ENABLED = !"false".equals(System.getProperty("cli.stats"));
+    static final boolean JFR = Boolean.getBoolean("cli.jfr");
+
+    private static final ConcurrentHashMap<String, Totals> TOTALS = new ConcurrentHashMap<>();
+    // What the command running on this thread has used so far
+    private static final ThreadLocal<Usage> CURRENT = new ThreadLocal<>();
+
+    // What one command, or one timed line, used. Only the thread running
+    // the command writes the fields, add() merges pipeline stages
+    static final class Usage {
+        long nanos;
+        long bytesRead;
+        long bytesWritten;
+        long files;
+        long errors;
+
+        synchronized void add(Usage other) {
+            bytesRead += other.bytesRead;
+            bytesWritten += other.bytesWritten;
+            files += other.files;
+            errors += other.errors;
+        }
+
+        // One line summary as printed by time
+        synchronized String summary() {
+            return String.format("real %.3f ms, read %d bytes, wrote %d bytes, %d files, %d errors",
+                    nanos / 1e6, bytesRead, bytesWritten, files, errors);
+        }
+    }
+
+    // Running totals of one command
+    private static final class Totals {
+        final LongAdder runs = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+        final Histogram latency = new Histogram();
+
+        void add(Usage usage) {
+            runs.increment();
+            errors.add(usage.errors);
+            nanos.add(usage.nanos);
+            bytesRead.add(usage.bytesRead);
+            bytesWritten.add(usage.bytesWritten);
+            files.add(usage.files);
+            maxNanos.accumulate(usage.nanos);
+            latency.record(usage.nanos / 1000);
+        }
+    }
+
+    // Latencies in microseconds. Below 4 each value has a bucket, above that
+    // every power of two is split in four, so a percentile is at most 25% high
+    static final class Histogram {
+        private static final int BUCKETS = 4 * 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long micros) {
+            counts.incrementAndGet(bucket(micros));
+        }
+
+        static int bucket(long value) {
+            if (value < 4) {
+                return (int) Math.max(value, 0);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int quarter = (int) (value >>> (exponent - 2)) & 3;
+            return Math.min(4 * (exponent - 1) + quarter, BUCKETS - 1);
+        }
+
+        // Largest value that falls into a bucket
+        static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int shift = bucket / 4 - 1;
+            return ((4L + bucket % 4) << shift) + (1L << shift) - 1;
+        }
+
+        // Smallest bucket bound that covers the given share of the values
+        long percentile(double fraction) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    // Runs a command and records what it used; line collects the usage of
+    // a line run under time and is null otherwise
+    static void measure(String name, Command command, Terminal terminal, String[] args,
+                        InputStream in, OutputSink out, Usage line) throws IOException {
+        Usage usage = new Usage();
+        Usage outer = CURRENT.get();
+        CURRENT.set(usage);
+        CommandEvent event = JFR ? CommandEvent.start() : null;
+        long writtenBefore = out.written();
+        long started = System.nanoTime();
+        try {
+            command.run(terminal, args, in, out);
+        } catch (IOException | RuntimeException e) {
+            usage.errors++;
+            throw e;
+        } finally {
+            usage.nanos = System.nanoTime() - started;
+            usage.bytesWritten += out.written() - writtenBefore;
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+            if (ENABLED) {
+                TOTALS.computeIfAbsent(name, key -> new Totals()).add(usage);
+            }
+            if (line != null) {
+                line.add(usage);
+            }
+            if (event != null) {
+                event.finish(name, usage);
+            }
+        }
+    }
+
+    // Called by commands for files they read (or only looked at, with 0 bytes)
+    static void read(long bytes, long files) {
+        Usage usage = CURRENT.get();
+        if (usage != null) {
+            usage.bytesRead += bytes;
+            usage.files += files;
+        }
+    }
+
+    // Called by commands for files they wrote, output to the sink is counted already
+    static void wrote(long bytes, long files) {
+        Usage usage = CURRENT.get();
+        if (usage != null) {
+            usage.bytesWritten += bytes;
+            usage.files += files;
+        }
+    }
+
+    static void error() {
+        Usage usage = CURRENT.get();
+        if (usage != null) {
+            usage.errors++;
+        }
+    }
+
+    // One row per command, slowest total first
+    static void report(OutputSink out) throws IOException {
+        List<Map.Entry<String, Totals>> rows = new ArrayList<>(TOTALS.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue().nanos.sum(), a.getValue().nanos.sum()));
+        out.println(String.format("%-8s %8s %6s %12s %10s %10s %10s %10s %10s %14s %14s %10s",
+                "command", "runs", "errors", "total ms", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "read", "written", "files"));
+        for (Map.Entry<String, Totals> row : rows) {
+            Totals totals = row.getValue();
+            long runs = Math.max(totals.runs.sum(), 1);
+            // Bucket bounds can lie above the slowest run, which is known exactly
+            long max = totals.maxNanos.get() / 1000;
+            out.println(String.format("%-8s %8d %6d %12.3f %10.3f %10.3f %10.3f %10.3f %10.3f %14d %14d %10d",
+                    row.getKey(), totals.runs.sum(), totals.errors.sum(),
+                    totals.nanos.sum() / 1e6, totals.nanos.sum() / 1e6 / runs,
+                    Math.min(totals.latency.percentile(0.50), max) / 1e3,
+                    Math.min(totals.latency.percentile(0.90), max) / 1e3,
+                    Math.min(totals.latency.percentile(0.99), max) / 1e3, totals.maxNanos.get() / 1e6,
+                    totals.bytesRead.sum(), totals.bytesWritten.sum(), totals.files.sum()));
+        }
+    }
+
+    static void reset() {
+        TOTALS.clear();
+    }
+}
+
+// stats command: per-command totals and latency percentiles since the JVM
+// started (shared by every daemon session), stats -r clears them
+class StatsCommand implements Command {
+    @Override
+    public void run(Terminal terminal, String[] args, InputStream in, OutputSink out) throws IOException {
+        if (!CommandStats.ENABLED) {
+            terminal.error("stats: collection is off (-Dcli.stats=false)");
+            return;
+        }
+        if (args.length == 1 && args[0].equals("-r")) {
+            CommandStats.reset();
+        } else if (args.length == 0) {
+            CommandStats.report(out);
+        } else {
+            terminal.error("stats: usage: stats [-r]");
+        }
+    }
+}
+
+// JFR event for one command run. Only loaded with -Dcli.jfr=true, so the
+// jdk.jfr classes stay out of a normal start
+@Name("cli.Command")
+@Label("Command")
+@Category("CLI")
+class CommandEvent extends jdk.jfr.Event {
+    @Label("Command")
+    String command;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Files")
+    long files;
+
+    @Label("Errors")
+    long errors;
+
+    static CommandEvent start() {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(String name, CommandStats.Usage usage) {
+        end();
+        if (shouldCommit()) {
+            command = name;
+            bytesRead = usage.bytesRead;
+            bytesWritten = usage.bytesWritten;
+            files = usage.files;
+            errors = usage.errors;
+            commit();
+        }
+    }
+}
+
+// Main class to handle user input and command execution
+public class Terminal {
+
+    // Built-in commands, each loaded the first time it runs
+    private static final CommandRegistry COMMANDS = new CommandRegistry();
+
+    // Input buffer for scripts and piped commands
+    private static final int BATCH_READ_BUFFER = 1024 * 1024;
+
+    // Threads that run the earlier stages of a pipeline
+    private static final ExecutorService PIPELINE_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "pipeline-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Where messages and console output go, System.out unless this is a daemon session
+    private final PrintStream console;
+    // Where errors go: stderr next to System.out, the session console otherwise
+    private final PrintStream diagnostics;
+    // Initialize parser and current dir
+    final Parser parser;
+    // Finds exit in input lines, with the same quoting rules as commands
+    private final Lexer exitLexer = new Lexer();
+    // Jobs started from this session with &
+    final JobTable jobs = new JobTable();
+    // Volatile as pipeline stages read it from their own threads
+    private volatile File currentDirectory;
+    // Exit status of the command running on each thread. Every earlier stage
+    // of a pipeline has a thread of its own, so the status left on the thread
+    // that runs the line is the status of its last stage
+    private final ThreadLocal<int[]> status = ThreadLocal.withInitial(() -> new int[1]);
+    // Usage of the running line when it started with time, null otherwise
+    private volatile CommandStats.Usage timing;
+
+    Terminal() {
+        this(System.out, new File(System.getProperty("user.dir")));
+    }
+
+    // A session with its own console and working directory
+    Terminal(PrintStream console, File directory) {
+        this(console, console == System.out ? System.err : console, directory);
+    }
+
+    // A session whose errors go to a stream of their own, like a daemon client's stderr
+    Terminal(PrintStream console, PrintStream diagnostics, File directory) {
+        this.console = console;
+        this.diagnostics = diagnostics;
+        this.parser = new Parser(diagnostics, this::currentPath);
+        this.currentDirectory = directory;
+    }
+
+
+    // (1) pwd command
+    public void pwd(OutputSink out) throws IOException {
+        out.println(currentDirectory.toString());
+    }
+
+    // (2) cd command
+    public void cd(String[] args) {
+        // case 1: cd
+        if (args.length == 0) {
+            currentDirectory = new File(System.getProperty("user.home"));
+        }
+    
+        // case 2: cd ..
+        else if (args[0].equals("..")) {
+            File parent = currentDirectory.getParentFile();
+            if (parent != null) {
+                currentDirectory = parent;
+            } 
+        }
+        // case 3: cd path
+        else {
+            Path newPath = Paths.get(args[0]);
+            if (!newPath.isAbsolute()) {
+                newPath = currentDirectory.toPath().resolve(newPath);
+            }
+            newPath = newPath.normalize();
+            if (Files.isDirectory(newPath)) {
+                currentDirectory = newPath.toFile();
+            } else {
+                error("cd: " + args[0] + ": No such directory");
+            }
+        }
+    }
+
+    // (3) ls command
+    public void ls(String[] args, OutputSink out) throws IOException {
+        // Flags: -l (long format), -a (hidden entries), -S (by size), -t (by time),
+        // -U (directory order, no sorting), combinable like -la
+        boolean longFormat = false, all = false, bySize = false, byTime = false, unsorted = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 'l': longFormat = true; break;
+                        case 'a': all = true; break;
+                        case 'S': bySize = true; break;
+                        case 't': byTime = true; break;
+                        case 'U': unsorted = true; break;
+                        default:
+                            error("ls: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.isEmpty()) {
+            listDirectory(currentPath(), longFormat, all, bySize, byTime, unsorted, out);
+            return;
+        }
+
+        // Like coreutils: file operands first, as one listing, then each
+        // directory, under a header when there is more than one operand
+        List<String> files = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        for (String operand : operands) {
+            Path path = resolvePath(operand);
+            if (Files.isDirectory(path)) {
+                directories.add(operand);
+            } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                files.add(operand);
+            } else {
+                error("ls: cannot access '" + operand + "': No such file or directory");
+            }
+        }
+        if (!unsorted) {
+            Collections.sort(files);
+            Collections.sort(directories);
+        }
+        if (!files.isEmpty()) {
+            printListing(currentPath(), files.toArray(new String[0]), longFormat, bySize, byTime, out);
+        }
+        boolean separate = !files.isEmpty();
+        for (String name : directories) {
+            if (separate) {
+                out.println("");
+            }
+            separate = true;
+            if (operands.size() > 1) {
+                out.println(name + ":");
+            }
+            listDirectory(resolvePath(name), longFormat, all, bySize, byTime, unsorted, out);
+        }
+    }
+
+    private void listDirectory(Path directory, boolean longFormat, boolean all, boolean bySize, boolean byTime,
+                               boolean unsorted, OutputSink out) throws IOException {
+        if (unsorted && !longFormat && !bySize && !byTime) {
+            //  Use DirectoryStream and print every name as soon as it is read
+            long listed = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (all || !name.startsWith(".")) {
+                        out.println(name);
+                        listed++;
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                error("Error: cannot list directory: " + directory + ": " + listFailure(directory));
+            }
+            CommandStats.read(0, listed);
+            return;
+        }
+
+        if (!longFormat && !bySize && !byTime) {
+            // Names go into one byte array and are written straight from it
+            DirectoryLister.NameTable names = new DirectoryLister.NameTable();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (all || !name.startsWith(".")) {
+                        names.add(name);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                error("Error: cannot list directory: " + directory + ": " + listFailure(directory));
+                return;
+            }
+            int[] order = names.sortedOrder();
+            for (int index : order) {
+                names.println(index, out);
+            }
+            CommandStats.read(0, names.size());
+            return;
+        }
+
+        // File.list hands back plain Strings without a Path object per entry
+        String[] sorted = directory.toFile().list();
+        if (sorted == null) {
+            error("Error: cannot list directory: " + directory + ": " + listFailure(directory));
+            return;
+        }
+        // Drop hidden entries in place, hidden entries only with -a
+        int count = 0;
+        for (String name : sorted) {
+            if (all || !name.startsWith(".")) {
+                sorted[count++] = name;
+            }
+        }
+        sorted = count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+        if (!unsorted) {
+            Arrays.parallelSort(sorted);
+        }
+        printListing(directory, sorted, longFormat, bySize, byTime, out);
+    }
+
+    // Prints names relative to directory, already in name order
+    private void printListing(Path directory, String[] sorted, boolean longFormat, boolean bySize, boolean byTime,
+                              OutputSink out) throws IOException {
+        // Attributes are read once per entry, then only the plain arrays are used
+        DirectoryLister.Listing listing = DirectoryLister.readAttributes(directory, sorted);
+        CommandStats.read(0, sorted.length);
+        int[] order = bySize ? DirectoryLister.orderDescending(listing.sizes)
+                : byTime ? DirectoryLister.orderDescending(listing.modified)
+                : DirectoryLister.identityOrder(sorted.length);
+        if (longFormat) {
+            DirectoryLister.printLong(directory, listing, order, out);
+        } else {
+            for (int index : order) {
+                out.println(sorted[index]);
+            }
+        }
+    }
+    
+    private static String listFailure(Path directory) {
+        return !Files.exists(directory) ? "No such file or directory"
+                : Files.isDirectory(directory) ? "Permission denied" : "Not a directory";
+    }
+
+    // (4) mkdir command
+    public void mkdir(String[] args) {
+        if (args.length == 0) {
+            error("mkdir: missing operand");
+            return;
+        }
+        for (String arg : args) {
+            try {
+                Path inputPath = Paths.get(arg);
+                // Resolve the target path
+                Path targetPath = inputPath.isAbsolute() ? inputPath.normalize()
+                        : currentDirectory.toPath().resolve(inputPath).normalize();
+
+                if (Files.exists(targetPath)) {
+                    error("mkdir: cannot create directory '" + arg + "': File exists");
+                    continue;
+                }
+
+                Files.createDirectories(targetPath);
+                CommandStats.wrote(0, 1);
+            } catch (Exception e) {
+                error("mkdir: cannot create directory '" + arg + "'");
+            }
+        }
+    }
+    
+    // (5) rmdir command
+    public void rmdir(String[] args) {
+        // -p also removes each parent named in the operand once it is empty
+        boolean parents = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-p")) {
+                parents = true;
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.isEmpty()) {
+            error("rmdir: missing operand");
+            return;
+        }
+
+        for (String operand : operands) {
+            String path = operand;
+            while (removeSingleDirectory(path) && parents) {
+                int slash = path.replaceAll("/+$", "").lastIndexOf('/');
+                if (slash <= 0) {
+                    break;
+                }
+                path = path.substring(0, slash);
+            }
+        }
+    }
+    // Helper method for rmdir dir, true once it is removed
+    private boolean removeSingleDirectory(String path) {
+        File dir;
+        if (path.startsWith("/") || path.contains(":")) {
+            dir = new File(path);
+        } else {
+            dir = new File(currentDirectory, path);
+        }
+
+        if (!dir.exists()) {
+            error("rmdir: failed to remove '" + path + "': No such file or directory");
+            return false;
+        }
+
+        if (!dir.isDirectory()) {
+            error("rmdir: failed to remove '" + path + "': Not a directory");
+            return false;
+        }
+
+        if (!isDirectoryEmpty(dir)) {
+            error("rmdir: failed to remove '" + path + "': Directory is not empty");
+            return false;
+        }
+
+        if (!dir.delete()) {
+            error("rmdir: failed to remove '" + path + "'");
+            return false;
+        }
+        CommandStats.wrote(0, 1);
+        return true;
+    }
+    // Helper method to check if a directory is empty
+    private boolean isDirectoryEmpty(File directory) {
+        if (!directory.isDirectory()) return false;
+        String[] contents = directory.list();
+        return contents != null && contents.length == 0;
+    }
+
+
+    // (6) touch command
+    public void touch(String[] args) {
+        if (args.length != 1) {
+            error("touch: missing file operand");
+            return;
+        }
+
+        String filePath = args[0];
+        File file;
+        // Determine if the path is absolute or relative
+        if (filePath.startsWith("/") || filePath.contains(":")) {
+            file = new File(filePath);
+        } else {
+            file = new File(currentDirectory, filePath);
+        }
+        // Check if parent directory exists
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            error("Error: Parent directory does not exist: " + parent.getAbsolutePath());
+            return;
+        }
+        try {
+            file.createNewFile();
+            CommandStats.wrote(0, 1);
+        } catch (IOException e) {
+            error("touch: cannot touch '" + args[0] + "'");
+        }
+    }
+    
+    // (7) cp cp-r commands
+    public void cp(String[] args) {
+        // Check for -r (recursive copy), -u (sync mode) and -j N (number of copy workers)
+        boolean isRecursive = false;
+        boolean update = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-r")) {
+                isRecursive = true;
+            } else if (args[i].equals("-u")) {
+                update = true;
+            } else if (args[i].equals("-j")) {
+                try {
+                    workers = Integer.parseInt(args[++i]);
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    error("cp: -j needs a positive number of workers");
+                    return;
+                }
+            } else {
+                operands.add(args[i]);
+            }
+        }
+
+        if (operands.size() < 2) {
+            error(operands.isEmpty() ? "cp: missing file operand" : "cp: missing destination file operand");
+            return;
+        }
+        if (operands.size() != 2) {
+            error("cp: extra operand '" + operands.get(2) + "'");
+            return;
+        }
+
+        Path source = resolvePath(operands.get(0));
+        Path destination = resolvePath(operands.get(1));
+
+        if (!Files.exists(source)) {
+            error("cp: cannot stat '" + operands.get(0) + "': No such file or directory");
+            return;
+        }
+    
+        if (isRecursive) {
+            // Validate source path for cp -r
+            if (!Files.isDirectory(source)) {
+                error("Error: Source path is not a directory. Use 'cp' for files.");
+                return;
+            }
+            // The copy goes to destination/<name of source>, and a root has no name
+            if (source.getFileName() == null) {
+                error("cp: cannot copy the root directory '" + operands.get(0) + "', copy what is in it instead");
+                return;
+            }
+    
+            try {
+                // If destination doesn't exist, create it first
+                if (!Files.exists(destination)) {
+                    Files.createDirectories(destination);
+                }
+            } catch (IOException e) {
+                error("cp: cannot copy '" + operands.get(0) + "' to '" + operands.get(1) + "': " + e.getMessage());
+                return;
+            }
+
+            // Copy the tree into des/source on the worker pool
+            TreeCopier copier = new TreeCopier(workers, update);
+            long started = System.nanoTime();
+            copier.copyTree(source, destination.resolve(source.getFileName()));
+            long elapsed = System.nanoTime() - started;
+
+            // Errors are reported together once all workers are done
+            for (String error : copier.errors) {
+                error("cp: " + error);
+            }
+            console.println(copier.summary(elapsed));
+            CommandStats.read(copier.bytes.sum(), copier.files.sum());
+            CommandStats.wrote(copier.bytes.sum(), 0);
+        } else {
+            // Logic for standard cp (file copy)
+            if (Files.isDirectory(source)) {
+                error("cp: -r not specified; omitting directory '" + operands.get(0) + "'");
+                return;
+            }
+    
+            if (update) {
+                // Sync a single file and report what it saved
+                TreeCopier copier = new TreeCopier(1, true);
+                long started = System.nanoTime();
+                copier.copyFile(source, destination);
+                for (String error : copier.errors) {
+                    error("cp: " + error);
+                }
+                console.println(copier.summary(System.nanoTime() - started));
+                // Every byte of the source was either rewritten or found unchanged
+                CommandStats.read(copier.bytes.sum() + copier.saved.sum(), 1);
+                CommandStats.wrote(copier.bytes.sum(), 0);
+                return;
+            }
+            try {
+                Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+                long size = Files.size(destination);
+                CommandStats.read(size, 1);
+                CommandStats.wrote(size, 0);
+            } catch (IOException e) {
+                error("cp: cannot create '" + operands.get(1) + "': " + e.getMessage());
+            }
+        }
+    }  
+
+    // (9) rm command
+    public void rm(String[] args) {
+        // Options: -r/-R (directories and their contents), -f (ignore missing
+        // operands) and -j N (workers for -r)
+        boolean recursive = false, force = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> operands = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-j")) {
+                try {
+                    workers = i + 1 < args.length ? Integer.parseInt(args[++i]) : 0;
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    error("rm: -j needs a positive number of workers");
+                    return;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 'r': case 'R': recursive = true; break;
+                        case 'f': force = true; break;
+                        default:
+                            error("rm: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (operands.isEmpty()) {
+            if (!force) {
+                error("rm: missing operand");
+            }
+            return;
+        }
+
+        TreeRemover remover = null;
+        long started = System.nanoTime();
+        for (String operand : operands) {
+            Path path = resolvePath(operand);
+            if (isRoot(path)) {
+                error("rm: it is dangerous to operate recursively on '" + operand + "'");
+                error("rm: refusing to remove the root directory");
+                continue;
+            }
+            // ., .. and anything that normalises to the current directory or one above it
+            Path last = Paths.get(operand).getFileName();
+            if (last != null && (last.toString().equals(".") || last.toString().equals(".."))
+                    || currentPath().normalize().startsWith(path)) {
+                error("rm: refusing to remove '.' or '..' directory: skipping '" + operand + "'");
+                continue;
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                if (!force) {
+                    error("rm: cannot remove '" + operand + "': No such file or directory");
+                }
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                if (!recursive) {
+                    error("rm: cannot remove '" + operand + "': Is a directory");
+                    continue;
+                }
+                if (remover == null) {
+                    remover = new TreeRemover(workers);
+                }
+                remover.removeTree(path);
+                continue;
+            }
+            try {
+                Files.delete(path);
+                CommandStats.wrote(0, 1);
+            } catch (IOException e) {
+                error("rm: cannot remove '" + operand + "': " + e.getMessage());
+            }
+        }
+
+        if (remover != null) {
+            // Errors are reported together once all workers are done
+            for (String error : remover.errors) {
+                error("rm: " + error);
+            }
+            console.println(remover.summary(System.nanoTime() - started));
+            CommandStats.wrote(0, remover.files.sum() + remover.directories.sum());
+        }
+    }
+
+    // Helper method for rm: the file system root, also when reached through links
+    private static boolean isRoot(Path path) {
+        if (path.getFileName() == null) {
+            return true;
+        }
+        try {
+            Path real = path.toRealPath();
+            return real.equals(real.getRoot());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // (10) cat command
+    public void cat(String[] args, InputStream in, OutputSink out) throws IOException {
+        if (args.length == 0) {
+            // Without files cat copies its piped input
+            if (in != null) {
+                out.copyFrom(in);
+            } else {
+                error("cat: missing operand");
+            }
+            return;
+        }
+
+        for (String fileName : args) {
+            File file = new File(fileName);
+
+            // Resolve relative paths
+            if (!file.isAbsolute()) {
+                file = new File(currentDirectory, fileName);
+            }
+
+            if (!file.exists()) {
+                error("cat: " + fileName + ": No such file or directory");
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                error("cat: " + fileName + ": Is a directory");
+                continue;
+            }
+            // Copy the raw bytes of the file to the output
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                out.transferFrom(source);
+                CommandStats.read(source.position(), 1);
+            } catch (IOException e) {
+                error("cat: " + fileName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // (11) wc command
+    public void wc(String[] args, InputStream in, OutputSink out) throws IOException {
+        // Collect -l, -w and -c flags (they can also be combined, like -lw)
+        boolean lines = false, words = false, bytes = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    switch (flag) {
+                        case 'l': lines = true; break;
+                        case 'w': words = true; break;
+                        case 'c': bytes = true; break;
+                        default:
+                            error("wc: invalid option -- '" + flag + "'");
+                            return;
+                    }
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+        // No flags means all three counts
+        if (!lines && !words && !bytes) {
+            lines = words = bytes = true;
+        }
+        if (files.isEmpty()) {
+            // Without files wc counts its piped input
+            if (in != null) {
+                out.println(formatCounts(WordCounter.count(in), lines, words, bytes).trim());
+            } else {
+                error("wc: missing operand");
+            }
+            return;
+        }
+
+        WordCounter.Counts total = new WordCounter.Counts();
+        for (String fileName : files) {
+            Path file = resolvePath(fileName);
+            if (!Files.exists(file)) {
+                error("wc: " + fileName + ": No such file or directory");
+                continue;
+            }
+            if (Files.isDirectory(file)) {
+                error("wc: " + fileName + ": Is a directory");
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WordCounter.Counts counts = WordCounter.count(channel);
+                CommandStats.read(counts.bytes, 1);
+                out.println(formatCounts(counts, lines, words, bytes) + fileName);
+                // Totals never need word-edge merging since files are separate
+                total.lines += counts.lines;
+                total.words += counts.words;
+                total.bytes += counts.bytes;
+            } catch (IOException e) {
+                error("wc: " + fileName + ": " + e.getMessage());
+            }
+        }
+        if (files.size() > 1) {
+            out.println(formatCounts(total, lines, words, bytes) + "total");
+        }
+    }
+    // Helper method to print the selected counts in lines, words, bytes order
+    private String formatCounts(WordCounter.Counts counts, boolean lines, boolean words, boolean bytes) {
+        StringBuilder result = new StringBuilder();
+        if (lines) result.append(counts.lines).append(' ');
+        if (words) result.append(counts.words).append(' ');
+        if (bytes) result.append(counts.bytes).append(' ');
+        return result.toString();
+    }
+        
+    //This method will choose the suitable command method to be called
+    public void chooseCommandAction() {
+        List<Parser.Stage> stages = parser.getStages();
+
+        // Output of the last command goes either to the console or to the redirection target
+        OutputSink out;
+        if (parser.isRedirected()) {
+            // use the data extracted by the parser to redirect the output
+            out = redirectOutput(parser.getRedirectFile(), parser.isAppend());
+            if (out == null) {
+                return;
+            }
+        } else {
+            out = console == System.out ? OutputSink.toStdout() : OutputSink.toConsole(console);
+        }
+
+        CommandStats.Usage line = parser.isTimed() ? new CommandStats.Usage() : null;
+        timing = line;
+        long started = System.nanoTime();
+        try (out) {
+            if (stages.size() == 1) {
+                runCommand(parser.getCommandName(), parser.getArgs(), null, out);
+            } else {
+                runPipeline(stages, out);
+            }
+        } catch (IOException e) {
+            error("Error writing output: " + e.getMessage());
+        } finally {
+            timing = null;
+        }
+        // Printed once the output is closed, so it comes last
+        if (line != null) {
+            line.nanos = System.nanoTime() - started;
+            console.println(line.summary());
+        }
+    }
+    // Runs a single command, in is its piped input or null when there is none
+    private void runCommand(String command, String[] args, InputStream in, OutputSink out) throws IOException {
+        // Each stage starts out successful, whatever ran on this thread before
+        status.get()[0] = 0;
+        Command builtin = COMMANDS.lookup(command);
+        if (builtin == null) {
+            error("Error: Unknown command " + command);
+            status.get()[0] = 127;
+            return;
+        }
+        CommandStats.Usage line = timing;
+        if (CommandStats.ENABLED || line != null) {
+            CommandStats.measure(command, builtin, this, args, in, out, line);
+        } else {
+            builtin.run(this, args, in, out);
+        }
+    }
+    // Helper method to run the stages of a pipeline at the same time. Each
+    // stage writes into a bounded pipe read by the next one, the last stage
+    // writes to the real output
+    private void runPipeline(List<Parser.Stage> stages, OutputSink out) throws IOException {
+        List<Future<?>> running = new ArrayList<>();
+        InputStream in = null;
+        for (int i = 0; i < stages.size() - 1; i++) {
+            Parser.Stage stage = stages.get(i);
+            InputStream stageIn = in;
+            BytePipe pipe = new BytePipe(BytePipe.DEFAULT_SIZE);
+            running.add(PIPELINE_EXECUTOR.submit(() -> {
+                try (stageIn; OutputSink stageOut = OutputSink.toStream(pipe.sink())) {
+                    runCommand(stage.commandName, stage.args, stageIn, stageOut);
+                } catch (BytePipe.BrokenPipeException e) {
+                    // The next stage stopped reading, nothing more to do
+                } catch (IOException e) {
+                    error("Error in pipeline: " + stage.commandName + ": " + e.getMessage());
+                }
+            }));
+            in = pipe.source();
+        }
+
+        Parser.Stage last = stages.get(stages.size() - 1);
+        // Closing the last input also stops producers whose output is no longer read
+        try (InputStream lastIn = in) {
+            runCommand(last.commandName, last.args, lastIn, out);
+        } finally {
+            for (Future<?> stage : running) {
+                try {
+                    stage.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    error("Error in pipeline: " + e.getCause());
+                }
+            }
+        }
+    }
+    PrintStream console() {
+        return console;
+    }
+
+    Path currentPath() {
+        return currentDirectory.toPath();
+    }
+
+    // Helper method to resolve a path argument against the current directory
+    Path resolvePath(String name) {
+        Path path = Paths.get(name);
+        if (!path.isAbsolute()) {
+            path = currentDirectory.toPath().resolve(path);
+        }
+        return path.normalize();
+    }
+    // Helper Method to open the output redirection target
+    private OutputSink redirectOutput(String fileName, boolean append) {
+        // resolve the file path based on current directory
+        Path filePath = currentDirectory.toPath().resolve(fileName);
+        try {
+            // >> adds to the end of the file, > overwrites it
+            return OutputSink.toFile(filePath, append);
+        } catch (IOException e) {
+            error("Error redirecting output to file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // For commands whose status tells more than success or failure, like grep
+    void setStatus(int status) {
+        this.status.get()[0] = status;
+    }
+
+    // Helper method to report an error and mark the command as failed. Errors
+    // never go into the command's output, where a pipe or redirect would take them
+    void error(String message) {
+        diagnostics.println(message);
+        status.get()[0] = 1;
+        CommandStats.error();
+    }
+
+    // Runs one input line and returns its exit status, 2 when it does not parse
+    int execute(String input) {
+        jobs.reportFinished(console);
+        int[] lineStatus = status.get();
+        lineStatus[0] = 0;
+        if (!parser.parse(input)) {
+            return lineStatus[0] = 2;
+        }
+        if (parser.isBackground()) {
+            // Everything before the & runs again in the job's own session
+            String line = input.substring(0, input.lastIndexOf('&')).trim();
+            JobTable.Job job = jobs.start(line, currentDirectory);
+            console.println("[" + job.id + "] " + line);
+            return lineStatus[0];
+        }
+        chooseCommandAction();
+        return lineStatus[0];
+    }
+
+    // Runs lines without prompts until the input ends or exit is read, the
+    // status of the last command becomes the result. Blank lines and lines
+    // starting with # are skipped so scripts can carry comments
+    int runBatch(BufferedReader reader) throws IOException {
+        int last = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            int exit = exitStatus(exitLexer, line, last, diagnostics);
+            if (exit >= 0) {
+                jobs.finish(console);
+                return exit;
+            }
+            last = execute(line);
+        }
+        // Jobs still running at the end are waited for, so their work and output are not lost
+        jobs.finish(console);
+        return last;
+    }
+
+    // Status to end with when line is exit, -1 for any other line. exit takes
+    // an optional status, otherwise the last one is kept. Every mode reads
+    // exit through here; a line that does not lex is left to execute, which reports it
+    static int exitStatus(Lexer words, String line, int last, PrintStream errors) {
+        if (!words.lex(line) || words.count() == 0 || words.kind(0) != Lexer.WORD
+                || !words.word(0).equalsIgnoreCase("exit")) {
+            return -1;
+        }
+        if (words.count() < 2 || words.kind(1) != Lexer.WORD) {
+            return last;
+        }
+        try {
+            return Integer.parseInt(words.word(1)) & 0xFF;
+        } catch (NumberFormatException e) {
+            errors.println("exit: " + words.word(1) + ": numeric argument required");
+            return 2;
+        }
+    }
+
+    // Batch entry point: -c "line", a script file, or commands piped into stdin.
+    // Output is collected in one large buffer and written when it fills or at the end
+    private static int runNonInteractive(String[] args) {
+        OutputSink.useBatchConsole();
+        Terminal cli = new Terminal();
+        try {
+            if (args.length > 0 && args[0].equals("-c")) {
+                if (args.length < 2) {
+                    System.err.println("cli: -c: option requires an argument");
+                    return 2;
+                }
+                String line = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+                return cli.runBatch(new BufferedReader(new StringReader(line)));
+            }
+            if (args.length > 0) {
+                Path script = Paths.get(args[0]);
+                if (!Files.isRegularFile(script)) {
+                    System.err.println("cli: " + args[0] + ": No such file");
+                    return 127;
+                }
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(Files.newInputStream(script), StandardCharsets.UTF_8), BATCH_READ_BUFFER)) {
+                    return cli.runBatch(reader);
+                }
+            }
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8), BATCH_READ_BUFFER);
+            return cli.runBatch(reader);
+        } catch (IOException e) {
+            System.err.println("cli: " + e.getMessage());
+            return 1;
+        } finally {
+            OutputSink.drainConsole();
+        }
+    }
+
+    // Daemon mode: --server SOCKET keeps a warm JVM running sessions, --client
+    // SOCKET [command line] forwards one line (or the lines of stdin) to it
+    private static int runDaemonMode(String[] args) {
+        if (args.length < 2) {
+            System.err.println("cli: " + args[0] + ": socket path required");
+            return 2;
+        }
+        Path socket = Paths.get(args[1]);
+        try {
+            if (args[0].equals("--server")) {
+                TerminalDaemon.serve(socket);
+                return 0;
+            }
+            String command = args.length > 2 ? String.join(" ", Arrays.copyOfRange(args, 2, args.length)) : null;
+            return TerminalDaemon.client(socket, command);
+        } catch (IOException e) {
+            System.err.println("cli: " + socket + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // Whether stdin is a terminal, whatever stdout is. System.console() only
+    // exists when both are, so with stdout redirected the fd is looked at
+    private static boolean isStdinTerminal() {
+        if (System.console() != null) {
+            return true;
+        }
+        try {
+            String input = Paths.get("/proc/self/fd/0").toRealPath().toString();
+            return input.startsWith("/dev/pts/") || input.startsWith("/dev/tty");
+        } catch (IOException | SecurityException | UnsupportedOperationException e) {
+            // No /proc on this system, so treat the input as a script
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && (args[0].equals("--server") || args[0].equals("--client"))) {
+            System.exit(runDaemonMode(args));
+        }
+        // Arguments or input that is not a terminal mean nobody reads prompts
+        if (args.length > 0 || !isStdinTerminal()) {
+            System.exit(runNonInteractive(args));
+        }
+        Terminal cli = new Terminal();
+        Scanner scanner = new Scanner(System.in);
+        String input;
+        int last = 0;
+
+        System.out.println("Command Line Interpreter (CLI) Started. Type 'exit' to quit.");
+        // -Dcli.startupTiming=true reports time to first prompt, see startup-profile.sh
+        if (Boolean.getBoolean("cli.startupTiming")) {
+            // Read the clock before the management classes load, they are not part of startup
+            long now = System.currentTimeMillis();
+            long started = java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.out.println("cli: first prompt after " + (now - started) + " ms");
+        }
+
+        // Main execution loop
+        while (true) {
+            // Jobs that ended while the last command ran or the user typed
+            cli.jobs.reportFinished(System.out);
+            System.out.print("cli:$ "); // Display prompt to the user
+
+            input = scanner.nextLine();
+
+            // Check for the mandatory 'exit' command
+            int exit = exitStatus(cli.exitLexer, input, last, System.err);
+            if (exit >= 0) {
+                // Jobs run on daemon threads, they would die half way through
+                cli.jobs.finish(System.out);
+                System.out.println("CLI terminating!");
+                scanner.close();
+                System.exit(exit);
+            }
+            // Skip processing if the input is empty after trimming
+            if (input.trim().isEmpty()) {
+                continue;
+            }
+            // Parse and dispatch the command for execution
+            last = cli.execute(input);
+        }
+    }
+     
+}
\ No newline at end of file
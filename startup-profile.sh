@@ -0,0 +1,81 @@
+#!/bin/sh
+# Startup profile for short-lived invocations like "Terminal -c pwd".
+#
+#   ./startup-profile.sh [runs]
+#
+# 1. Builds the cli module and copies its jar to build/cli.jar.
+# 2. Training run: a script of everyday commands runs once with
+#    -XX:ArchiveClassesAtExit, which dumps every class it loaded (JDK and
+#    CLI, already parsed and verified) into the AppCDS archive build/cli.jsa.
+# 3. Times "-c pwd" without and with the archive, best of [runs] (default 10).
+#
+# Start the CLI with the profile like this:
+#
+#   java -XX:SharedArchiveFile=build/cli.jsa -XX:TieredStopAtLevel=1 -jar build/cli.jar
+#
+# TieredStopAtLevel=1 keeps only the quick C1 compiler, which is all a short
+# session gets to use. Add -Dcli.startupTiming=true to an interactive start to
+# print the time to the first prompt. Commands are loaded on first use, so
+# only those in the training script come out of the archive; rerun after
+# changing the sources, a stale archive is ignored by the JVM.
+set -e
+
+cd "$(dirname "$0")"
+RUNS=${1:-10}
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+rm -rf build
+mkdir -p build/training
+mvn -B -q -pl cli package
+cp cli/target/cli.jar build/cli.jar
+
+# Training run in a scratch directory. It starts from here so the archive
+# records the same class path (build/cli.jar) as the timed runs below
+echo hello > build/training/a.txt
+cat > build/training/train.cli <<'SCRIPT'
+cd build/training
+pwd
+ls
+ls -l
+mkdir d
+touch d/b.txt
+cp a.txt d/c.txt
+cp -r d e
+cat a.txt | wc -l
+cat a.txt > out.txt
+wc a.txt out.txt
+zip -r t.zip d
+unzip -l t.zip
+unzip -d u t.zip
+rm out.txt
+SCRIPT
+"$JAVA" -XX:ArchiveClassesAtExit=build/cli.jsa -jar build/cli.jar build/training/train.cli > /dev/null
+
+# Best wall time of RUNS runs, in milliseconds
+best() {
+    min=
+    i=0
+    while [ "$i" -lt "$RUNS" ]; do
+        start=$(date +%s%N)
+        "$@" > /dev/null
+        end=$(date +%s%N)
+        ms=$(( (end - start) / 1000000 ))
+        if [ -z "$min" ] || [ "$ms" -lt "$min" ]; then min=$ms; fi
+        i=$((i + 1))
+    done
+    echo "$min"
+}
+
+echo "-c pwd, default JVM:    $(best "$JAVA" -jar build/cli.jar -c pwd) ms"
+echo "-c pwd, startup profile: $(best "$JAVA" -XX:SharedArchiveFile=build/cli.jsa -XX:TieredStopAtLevel=1 \
+    -jar build/cli.jar -c pwd) ms"
+
+# Time to first prompt needs a terminal, util-linux script provides one
+if command -v script > /dev/null 2>&1; then
+    first_prompt() {
+        echo exit | script -qc "$JAVA $* -Dcli.startupTiming=true -jar build/cli.jar" /dev/null \
+            | sed -n 's/.*first prompt after \([0-9]*\) ms.*/\1/p'
+    }
+    echo "first prompt, default JVM:    $(first_prompt) ms"
+    echo "first prompt, startup profile: $(first_prompt -XX:SharedArchiveFile=build/cli.jsa -XX:TieredStopAtLevel=1) ms"
+fi